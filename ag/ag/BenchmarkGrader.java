@@ -0,0 +1,97 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * An autograder that measures how fast the processor simulates a user
+ * program. The kernel runs normally, except that each time the program calls
+ * <tt>exit()</tt>, it is restarted from its entry point instead, until it has
+ * run the number of times given by the <tt>runs</tt> test argument. For
+ * example:
+ *
+ * <pre>
+ * nachos -- nachos.ag.BenchmarkGrader -# runs=20 -x sort.coff
+ * </pre>
+ *
+ * <p>
+ * The time taken by each run is printed, along with the average rate, in
+ * simulated instructions per second, of every run but the first (which
+ * includes the JVM warming up). Only programs that initialize all of their
+ * own data, such as <tt>matmult.coff</tt> and <tt>sort.coff</tt>, can be
+ * meaningfully restarted this way.
+ */
+public class BenchmarkGrader extends AutoGrader {
+    void init() {
+	super.init();
+
+	runs = getIntegerArgument("runs");
+	Lib.assertTrue(runs > 0, "runs must be positive");
+    }
+
+    public void runProcessor(Privilege privilege) {
+	super.runProcessor(privilege);
+
+	// remember where the first user program started
+	if (startTime == 0) {
+	    Processor processor = Machine.processor();
+	    entryPC = processor.readRegister(Processor.regPC);
+	    entrySP = processor.readRegister(Processor.regSP);
+	    startRun();
+	}
+    }
+
+    public boolean exceptionHandler(Privilege privilege) {
+	super.exceptionHandler(privilege);
+
+	Processor processor = Machine.processor();
+
+	if (processor.readRegister(Processor.regCause) !=
+	    Processor.exceptionSyscall ||
+	    processor.readRegister(Processor.regV0) != syscallExit)
+	    return true;
+
+	long time = System.nanoTime() - startTime;
+	long instructions =
+	    (privilege.stats.userTicks - startTicks) / Stats.UserTick;
+
+	runsDone++;
+	System.out.println("benchmark run " + runsDone + ": " + instructions
+			   + " instructions in " + time/1000000 + " ms");
+
+	if (runsDone > 1) {
+	    warmInstructions += instructions;
+	    warmTime += time;
+	}
+
+	if (runsDone == runs) {
+	    if (warmTime > 0)
+		System.out.println("benchmark: "
+				   + (warmInstructions * 1000000000 / warmTime)
+				   + " instructions/s after the first run");
+
+	    // the benchmark is over, so do not depend on the kernel's exit()
+	    Machine.halt();
+	}
+
+	// start over, without telling the kernel
+	processor.writeRegister(Processor.regPC, entryPC);
+	processor.writeRegister(Processor.regNextPC, entryPC+4);
+	processor.writeRegister(Processor.regSP, entrySP);
+	startRun();
+
+	return false;
+    }
+
+    private void startRun() {
+	startTicks = privilege.stats.userTicks;
+	startTime = System.nanoTime();
+    }
+
+    private static final int syscallExit = 1;
+
+    private int runs, runsDone = 0;
+    private int entryPC, entrySP;
+    private long startTicks, startTime = 0;
+    private long warmInstructions = 0, warmTime = 0;
+}
@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +54,14 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	// the debug flags are fixed by now, so decide once whether to trace
+	tracing = Lib.test(dbgInt);
+
+	fastForward = Config.getBoolean("Interrupt.fastForward", false);
+
+	for (int slot=initialCapacity-1; slot>=0; slot--)
+	    freeSlots[numFree++] = slot;
     }
 
     /**
@@ -120,17 +128,73 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
-	Lib.assertTrue(when>0);
-	
-	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+    /**
+     * Advance the simulated time to just before the next pending interrupt.
+     * Called by the idle thread when no other thread is ready to run, since
+     * nothing can happen before then. The interrupt is not invoked here: the
+     * next tick, when the idle thread enables interrupts, reaches it and
+     * invokes it as usual. The skipped time is counted in
+     * <tt>Stats.idleTicks</tt>.
+     *
+     * <p>
+     * If a host thread has work outstanding that it will <tt>post()</tt>,
+     * such as a processor running a slice of user code, waits for it to post
+     * instead, without letting any time pass; the posted interrupt is
+     * invoked at the next tick.
+     *
+     * <p>
+     * Otherwise does nothing unless <tt>Interrupt.fastForward</tt> is set in
+     * the configuration file, or if no interrupt is pending. Interrupts must
+     * be disabled.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (numOutstanding > 0) {
+	    waitForPost();
+	    return;
+	}
 
-	pending.add(toOccur);
+	if (!fastForward || numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = nextDue - Stats.KernelTick - stats.totalTicks;
+
+	if (skipped > 0) {
+	    Lib.debug(dbgInt, "Idle, skipping " + skipped + " ticks");
+
+	    stats.totalTicks += skipped;
+	    stats.idleTicks += skipped;
+	}
+    }
+
+    /**
+     * Block the host thread until some handler has been posted.
+     */
+    private void waitForPost() {
+	Lib.debug(dbgInt, "Idle, waiting for a posted interrupt");
+
+	waiter = Thread.currentThread();
+	while (!anyPosted)
+	    LockSupport.park(this);
+	waiter = null;
+    }
+
+    private void post(Runnable handler) {
+	posted.add(handler);
+	anyPosted = true;
+
+	Thread thread = waiter;
+	if (thread != null)
+	    LockSupport.unpark(thread);
+    }
+
+    private PendingInterrupt schedule(long when, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = new PendingInterrupt(type, handler);
+	toOccur.reschedule(when);
+	return toOccur;
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,7 +209,11 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	// nothing to do unless an interrupt is due or we are tracing
+	if (stats.totalTicks < nextDue && !tracing && !anyPosted)
+	    return;
+
+	if (tracing)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -158,23 +226,21 @@ public final class Interrupt {
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (tracing)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
+	if (anyPosted)
+	    invokePosted();
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDue <= time) {
+	    PendingInterrupt next = pendings[heap[0]];
 
-	    Lib.assertTrue(next.time <= time);
+	    removeAt(0);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
@@ -187,49 +253,226 @@ public final class Interrupt {
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Invoke the handlers posted by host threads, in the order they were
+     * posted.
+     */
+    private void invokePosted() {
+	anyPosted = false;
+
+	Runnable handler;
+	while ((handler = posted.poll()) != null) {
+	    numOutstanding--;
+
+	    if (privilege.processor != null)
+		privilege.processor.flushPipe();
+
+	    Lib.debug(dbgInt, "  posted");
+
+	    handler.run();
+	}
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	Integer[] sorted = new Integer[numPending];
+	for (int i=0; i<numPending; i++)
+	    sorted[i] = heap[i];
+	Arrays.sort(sorted, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+		}
+	    });
+
+	for (int i=0; i<sorted.length; i++) {
+	    System.out.println("  " + pendings[sorted[i]].type +
+			       ", scheduled at " + times[sorted[i]]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
+    /**
+     * Return a free slot for a pending interrupt, growing the slot arrays if
+     * they are full.
+     */
+    private int allocateSlot() {
+	if (numFree == 0) {
+	    int capacity = times.length;
+	    int newCapacity = capacity*2;
+
+	    times = Arrays.copyOf(times, newCapacity);
+	    ids = Arrays.copyOf(ids, newCapacity);
+	    pendings = Arrays.copyOf(pendings, newCapacity);
+	    positions = Arrays.copyOf(positions, newCapacity);
+	    heap = Arrays.copyOf(heap, newCapacity);
+	    freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+
+	    for (int slot=newCapacity-1; slot>=capacity; slot--)
+		freeSlots[numFree++] = slot;
+	}
+
+	return freeSlots[--numFree];
+    }
+
+    /**
+     * Remove the pending interrupt at the specified position in the heap,
+     * and free its slot.
+     */
+    private void removeAt(int position) {
+	int slot = heap[position];
+
+	int last = heap[--numPending];
+	if (position < numPending) {
+	    heap[position] = last;
+	    positions[last] = position;
+	    siftDown(position);
+	    siftUp(positions[last]);
+	}
+
+	pendings[slot].slot = -1;
+	pendings[slot] = null;
+	positions[slot] = -1;
+	freeSlots[numFree++] = slot;
+
+	nextDue = (numPending > 0) ? times[heap[0]] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Test whether the interrupt in slot <i>a</i> occurs before the one in
+     * slot <i>b</i>. Interrupts due at the same time occur in the order they
+     * were scheduled.
+     */
+    private boolean before(int a, int b) {
+	return times[a] < times[b] || (times[a] == times[b] && ids[a] < ids[b]);
+    }
+
+    private void siftUp(int position) {
+	int slot = heap[position];
+
+	while (position > 0) {
+	    int parent = (position-1) / 2;
+	    if (!before(slot, heap[parent]))
+		break;
+
+	    heap[position] = heap[parent];
+	    positions[heap[position]] = position;
+	    position = parent;
+	}
+
+	heap[position] = slot;
+	positions[slot] = position;
+    }
+
+    private void siftDown(int position) {
+	int slot = heap[position];
+
+	while (true) {
+	    int child = 2*position + 1;
+	    if (child >= numPending)
+		break;
+	    if (child+1 < numPending && before(heap[child+1], heap[child]))
+		child++;
+	    if (!before(heap[child], slot))
+		break;
+
+	    heap[position] = heap[child];
+	    positions[heap[position]] = position;
+	    position = child;
+	}
+
+	heap[position] = slot;
+	positions[slot] = position;
+    }
+
+    /**
+     * An interrupt scheduled by
+     * <tt>Privilege.InterruptPrivilege.schedulePending()</tt>.
+     * The handle stays usable after the interrupt occurs or is cancelled, so
+     * a device that raises the same interrupt over and over can keep one
+     * handle and call <tt>reschedule()</tt>, which allocates nothing.
+     */
+    public final class PendingInterrupt {
+	private PendingInterrupt(String type, Runnable handler) {
 	    this.type = type;
 	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	/**
+	 * Test whether this interrupt is still to occur.
+	 *
+	 * @return	<tt>true</tt> if this interrupt is pending.
+	 */
+	public boolean isPending() {
+	    return slot != -1;
+	}
+
+	/**
+	 * Return the time this interrupt is to occur.
+	 *
+	 * @return	the time this interrupt is due, in ticks since Nachos
+	 *		started.
+	 */
+	public long getTime() {
+	    Lib.assertTrue(isPending());
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	    return times[slot];
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	/**
+	 * Prevent this interrupt from occurring. Does nothing if it is not
+	 * pending.
+	 */
+	public void cancel() {
+	    if (slot == -1)
+		return;
+
+	    Lib.debug(dbgInt, "Cancelling the " + type + " interrupt handler");
+
+	    removeAt(positions[slot]);
+	}
+
+	/**
+	 * Make this interrupt occur <i>when</i> ticks from now instead of at
+	 * the time it was due. If it is not pending, schedule it again.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 */
+	public void reschedule(long when) {
+	    Lib.assertTrue(when>0);
+
+	    long time = privilege.stats.totalTicks + when;
+
+	    if (tracing)
+		Lib.debug(dbgInt,
+			  "Scheduling the " + type +
+			  " interrupt handler at time = " + time);
+
+	    // re-entering the heap puts this after anything due at the same time
+	    if (slot != -1)
+		removeAt(positions[slot]);
+
+	    slot = allocateSlot();
+	    times[slot] = time;
+	    ids[slot] = numPendingInterruptsCreated++;
+	    pendings[slot] = this;
+
+	    heap[numPending] = slot;
+	    positions[slot] = numPending;
+	    siftUp(numPending++);
+
+	    nextDue = times[heap[0]];
+	}
+
+	private String type;
+	private Runnable handler;
 
-	private long id;
+	/** The slot holding this interrupt, or -1 if it is not pending. */
+	private int slot = -1;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +480,47 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** <tt>true</tt> if interrupt debugging is enabled. */
+    private boolean tracing;
+    /** <tt>true</tt> if <tt>idle()</tt> may skip simulated time. */
+    private boolean fastForward;
+
+    /**
+     * The pending interrupts form a binary min-heap of slot numbers, ordered
+     * by time and then by the order they were scheduled. The state of the
+     * interrupt in slot <i>s</i> is kept in element <i>s</i> of the parallel
+     * arrays below, so rescheduling an interrupt allocates nothing once the
+     * arrays are large enough.
+     */
+    private int[] heap = new int[initialCapacity];
+    /** The number of pending interrupts in <tt>heap</tt>. */
+    private int numPending = 0;
+    /** The time each interrupt is due. */
+    private long[] times = new long[initialCapacity];
+    /** The order in which each interrupt was scheduled. */
+    private long[] ids = new long[initialCapacity];
+    /** The interrupt in each slot. */
+    private PendingInterrupt[] pendings = new PendingInterrupt[initialCapacity];
+    /** The position of each slot in <tt>heap</tt>, or -1 if it is free. */
+    private int[] positions = new int[initialCapacity];
+    /** A stack of the free slots. */
+    private int[] freeSlots = new int[initialCapacity];
+    /** The number of free slots in <tt>freeSlots</tt>. */
+    private int numFree = 0;
+    /** The time the earliest pending interrupt is due. */
+    private long nextDue = Long.MAX_VALUE;
+
+    private static final int initialCapacity = 16;
+
+    /** Handlers posted by host threads, not yet invoked. */
+    private ConcurrentLinkedQueue<Runnable> posted =
+	new ConcurrentLinkedQueue<Runnable>();
+    /** Set whenever a handler is posted, so a tick can check cheaply. */
+    private volatile boolean anyPosted = false;
+    /** The number of posts expected that have not been invoked yet. */
+    private int numOutstanding = 0;
+    /** The host thread waiting in <tt>idle()</tt> for a post, if any. */
+    private volatile Thread waiter = null;
 
     private static final char dbgInt = 'i';
 
@@ -246,8 +529,21 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public PendingInterrupt schedulePending(long when, String type,
+						Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void expectPost() {
+	    numOutstanding++;
+	}
+
+	public void post(Runnable handler) {
+	    Interrupt.this.post(handler);
+	}
     }
 }
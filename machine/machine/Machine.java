@@ -92,11 +92,17 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, and any processor profiles, and terminate Nachos.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	if (processors != null) {
+	    for (int i=0; i<processors.length; i++)
+		processors[i].printProfile();
+	}
+
 	terminate();
     }
 
@@ -176,7 +182,16 @@ public final class Machine {
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
-	    processor = new Processor(privilege, numPhysPages);
+
+	    int numProcessors = Config.getInteger("Machine.numProcessors", 1);
+	    Lib.assertTrue(numProcessors >= 1);
+
+	    processors = new Processor[numProcessors];
+	    processors[0] = new Processor(privilege, numPhysPages);
+	    for (int i=1; i<numProcessors; i++)
+		processors[i] = new Processor(privilege, processors[0]);
+
+	    processor = processors[0];
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -317,11 +332,57 @@ public final class Machine {
     public static ElevatorBank bank() { return bank; }
     
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor that the current thread runs on. This is the
+     * processor last selected with <tt>setCurrentProcessor()</tt>, or the
+     * first processor if there is only one.
      *
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the specified MIPS processor.
+     *
+     * @param	number	the number of the processor, from 0 to
+     *			<tt>numProcessors()-1</tt>.
+     * @return	the MIPS processor, or <tt>null</tt> if it is not present.
+     */
+    public static Processor processor(int number) {
+	if (processors == null)
+	    return null;
+
+	Lib.assertTrue(number >= 0 && number < processors.length);
+	return processors[number];
+    }
+
+    /**
+     * Return the number of MIPS processors, set by
+     * <tt>Machine.numProcessors</tt> in the configuration file. All of them
+     * share the same physical memory.
+     *
+     * @return	the number of processors, or 1 if they are not present.
+     */
+    public static int numProcessors() {
+	return (processors == null) ? 1 : processors.length;
+    }
+
+    /**
+     * Select the processor returned by <tt>processor()</tt>. A kernel that
+     * uses more than one processor must call this whenever it switches to a
+     * thread that runs on a different processor than the last one.
+     *
+     * <p>
+     * Only one Nachos thread runs at a time, so processors that run user code
+     * with <tt>Processor.run()</tt> take turns. To run user code on several
+     * processors at the same time, set <tt>Processor.concurrent</tt> and use
+     * <tt>Processor.startSlice()</tt> instead.
+     *
+     * @param	number	the number of the processor to select.
+     */
+    public static void setCurrentProcessor(int number) {
+	if (processors != null)
+	    processor = processor(number);
+    }
     
     /**
      * Return the hardware console.
@@ -355,6 +416,7 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Processor[] processors = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
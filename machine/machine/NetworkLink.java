@@ -156,8 +156,12 @@ public class NetworkLink {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				     receiveInterrupt);
+	if (pendingReceive == null)
+	    pendingReceive =
+		privilege.interrupt.schedulePending(Stats.NetworkTime, "network recv",
+					     receiveInterrupt);
+	else
+	    pendingReceive.reschedule(Stats.NetworkTime);
     }
 
     private synchronized void receiveInterrupt() {
@@ -240,8 +244,12 @@ public class NetworkLink {
     }		
     
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				     sendInterrupt);
+	if (pendingSend == null)
+	    pendingSend =
+		privilege.interrupt.schedulePending(Stats.NetworkTime, "network send",
+					     sendInterrupt);
+	else
+	    pendingSend.reschedule(Stats.NetworkTime);
     }
 
     private void sendInterrupt() {
@@ -311,6 +319,8 @@ public class NetworkLink {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private Interrupt.PendingInterrupt pendingReceive = null;
+    private Interrupt.PendingInterrupt pendingSend = null;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
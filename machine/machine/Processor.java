@@ -4,6 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +23,17 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * Additional processors can be attached to the same physical memory, each with
+ * its own registers and TLB.
+ *
+ * <p>
+ * If <tt>Processor.concurrent</tt> is set in the configuration file, a kernel
+ * can also run user code in <i>slices</i> of up to
+ * <tt>Processor.sliceLength</tt> instructions, using <tt>startSlice()</tt>
+ * and <tt>endSlice()</tt> instead of <tt>run()</tt>. A slice runs on a host
+ * thread of its own, so the slices of different processors run at the same
+ * time, on different host cores, while the kernel goes on running other
+ * threads.
  */
 public final class Processor {
     /**
@@ -34,27 +50,172 @@ public final class Processor {
 	this.privilege = privilege;
 	privilege.processor = new ProcessorPrivilege();
 
+	this.numPhysPages = numPhysPages;
+
+	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new DecodedInstruction[numPhysPages][];
+	processors = new ArrayList<Processor>();
+
+	initialize();
+    }
+
+    /**
+     * Allocate another MIPS processor, attached to the same physical memory
+     * as <i>first</i>. The new processor has its own registers and TLB, and
+     * its own exception handler.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	first		the first processor allocated.
+     */
+    public Processor(Privilege privilege, Processor first) {
+	Lib.assertTrue(first.number == 0);
+
+	this.privilege = privilege;
+
+	numPhysPages = first.numPhysPages;
+
+	mainMemory = first.mainMemory;
+	decodeCache = first.decodeCache;
+	processors = first.processors;
+
+	initialize();
+    }
+
+    /**
+     * Set up the state that each processor has to itself.
+     */
+    private void initialize() {
+	stats = privilege.stats;
+
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
 
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
 	
-	this.numPhysPages = numPhysPages;
-
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	// the debug flags are fixed by now, so decide once whether to trace
+	tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble);
+
+	if (Config.getBoolean("Processor.profile", false))
+	    profile = new Profile();
+
+	// the block engine skips the per-instruction debug output and the
+	// profiler, so only use it when neither was asked for
+	usingBlocks = Config.getBoolean("Processor.blockEngine", false) &&
+	    !tracing && profile == null;
+
+	if (usingBlocks) {
+	    blockCache = new BasicBlock[numPhysPages][];
+	    blockHits = new int[numPhysPages][];
+	}
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize%tlbWays == 0,
+			   "bad TLB geometry");
+	    tlbSets = tlbSize / tlbWays;
+
+	    String replacement =
+		Config.getString("Processor.tlbReplacement", "random");
+	    if (replacement.equals("random"))
+		tlbReplacement = replaceRandom;
+	    else if (replacement.equals("fifo"))
+		tlbReplacement = replaceFIFO;
+	    else if (replacement.equals("plru"))
+		tlbReplacement = replacePLRU;
+	    else
+		Lib.assertNotReached("unknown TLB replacement: " + replacement);
+
+	    // a pseudo-LRU tree needs a power of two ways, one bit per node
+	    if (tlbReplacement == replacePLRU)
+		Lib.assertTrue(tlbWays <= 32 && (tlbWays & (tlbWays-1)) == 0,
+			       "pseudo-LRU needs 1, 2, 4, ..., or 32 ways");
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    tlbFIFO = new int[tlbSets];
+	    tlbPLRU = new int[tlbSets];
+
+	    if (stats.numTLBSetMisses == null ||
+		stats.numTLBSetMisses.length != tlbSets)
+		stats.numTLBSetMisses = new int[tlbSets];
 	}
 	else {
 	    translations = null;
 	}
+
+	concurrent = Config.getBoolean("Processor.concurrent", false);
+	if (concurrent) {
+	    sliceLength = Config.getInteger("Processor.sliceLength", 10000);
+	    Lib.assertTrue(sliceLength > 0);
+	}
+
+	number = processors.size();
+	processors.add(this);
+    }
+
+    /**
+     * Allocate the shadow of a processor, which runs the processor's slices
+     * on a host thread. It shares the processor's memory, but has its own
+     * copies of everything the processor changes as it runs, so that the
+     * kernel can use the processor while a slice runs.
+     *
+     * @param	owner	the processor whose slices this runs.
+     */
+    private Processor(Processor owner) {
+	this.owner = owner;
+
+	privilege = owner.privilege;
+	number = owner.number;
+	processors = owner.processors;
+
+	numPhysPages = owner.numPhysPages;
+	mainMemory = owner.mainMemory;
+	decodeCache = new DecodedInstruction[numPhysPages][];
+
+	tracing = owner.tracing;
+	profile = owner.profile;
+	usingBlocks = owner.usingBlocks;
+	if (usingBlocks) {
+	    blockCache = new BasicBlock[numPhysPages][];
+	    blockHits = new int[numPhysPages][];
+	}
+
+	// misses are counted here, and added to the real counts at the end
+	stats = new Stats();
+
+	usingTLB = owner.usingTLB;
+	if (usingTLB) {
+	    tlbSize = owner.tlbSize;
+	    tlbWays = owner.tlbWays;
+	    tlbSets = owner.tlbSets;
+	    tlbReplacement = owner.tlbReplacement;
+
+	    translations = new TranslationEntry[tlbSize];
+	    tlbSources = new TranslationEntry[tlbSize];
+	    tlbPLRU = new int[tlbSets];
+	    stats.numTLBSetMisses = new int[tlbSets];
+	}
+
+	sliceLength = owner.sliceLength;
+    }
+
+    /**
+     * Return the number of this processor. The first processor allocated is
+     * number 0, the next is number 1, and so on.
+     *
+     * @return	the number of this processor.
+     */
+    public int getNumber() {
+	return number;
     }
 
     /**
@@ -87,22 +248,523 @@ public final class Processor {
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
 
-	registers[regNextPC] = registers[regPC] + 4;
-
-	Machine.autoGrader().runProcessor(privilege);
+	startProgram();
 
-	Instruction inst = new Instruction();
+	Instruction inst = tracing ? new TracedInstruction() : new Instruction();
 	
 	while (true) {
 	    try {
-		inst.run();
+		step(inst);
 	    }
 	    catch (MipsException e) {
 		e.handle();
+		retire();
+	    }
+	}
+    }
+
+    /**
+     * Prepare to start executing instructions at the current PC. A kernel
+     * that runs user code in slices must call this once, before the first
+     * slice of each program; <tt>run()</tt> calls it itself.
+     */
+    public void startProgram() {
+	registers[regNextPC] = registers[regPC] + 4;
+
+	Machine.autoGrader().runProcessor(privilege);
+    }
+
+    /**
+     * Execute the instruction at the current PC, or the basic block that
+     * starts there, and retire what was executed.
+     *
+     * @param	inst	the instruction to execute with.
+     * @exception	MipsException	if the instruction raised an
+     *					exception. It has not been retired.
+     */
+    private void step(Instruction inst) throws MipsException {
+	if (usingBlocks && runBlock())
+	    return;
+
+	if (profile == null) {
+	    inst.run();
+	}
+	else {
+	    int pc = registers[regPC];
+	    inst.run();
+	    profile.retire(pc, inst.decoded);
+	}
+
+	retire();
+    }
+
+    /**
+     * Retire an instruction. A processor advances the simulated time; a
+     * shadow counts the instruction toward its slice instead, and stops any
+     * running block once the slice is full.
+     */
+    private void retire() {
+	if (owner == null)
+	    privilege.interrupt.tick(false);
+	else if (++numRetired == sliceLength)
+	    blockEpoch++;
+    }
+
+    /**
+     * Test whether this processor can run user code in slices, on host
+     * threads, instead of with <tt>run()</tt>.
+     *
+     * @return	<tt>true</tt> if <tt>Processor.concurrent</tt> is set.
+     */
+    public boolean isConcurrent() {
+	return concurrent;
+    }
+
+    /**
+     * Set the slice handler, called as an interrupt whenever a slice started
+     * by <tt>startSlice()</tt> ends. The kernel should respond by calling
+     * <tt>endSlice()</tt>.
+     *
+     * @param	sliceHandler	the kernel slice handler.
+     */
+    public void setSliceHandler(Runnable sliceHandler) {
+	this.sliceHandler = sliceHandler;
+    }
+
+    /**
+     * Start executing up to <tt>Processor.sliceLength</tt> instructions at
+     * the current PC, on a host thread, and return at once. The slice stops
+     * early at the first exception.
+     *
+     * <p>
+     * The slice runs on a copy of the registers, TLB, and ASID as they are
+     * now, and with the current page table, so the kernel may go on using
+     * this processor while it runs, for example to switch to another thread.
+     * A slice never sees TLB writes made after it started, and may not see
+     * changes to the page table until the next slice, so a kernel must not
+     * take away a page that a running slice may use. Simulated time does not
+     * advance while the slice runs.
+     *
+     * <p>
+     * When the slice ends, the slice handler is invoked. No other slice may
+     * be started on this processor until <tt>endSlice()</tt> is called.
+     */
+    public void startSlice() {
+	Lib.assertTrue(concurrent && sliceHandler != null);
+	Lib.assertTrue(!inSlice);
+
+	if (shadow == null) {
+	    shadow = new Processor(this);
+
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { shadow.startHostThread(); }
+		});
+	}
+
+	inSlice = true;
+
+	Processor s = shadow;
+
+	System.arraycopy(registers, 0, s.registers, 0, numUserRegisters);
+	s.loadTarget = loadTarget;
+	s.loadMask = loadMask;
+	s.loadValue = loadValue;
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSize; i++) {
+		s.tlbSources[i] = translations[i];
+		s.translations[i] = new TranslationEntry(translations[i]);
+	    }
+	    System.arraycopy(tlbPLRU, 0, s.tlbPLRU, 0, tlbSets);
+	    s.asid = asid;
+	}
+	else {
+	    s.translations = translations;
+	}
+
+	// blocks are checked against memory again before they next run
+	s.forgetLastPages();
+	s.blockEpoch++;
+
+	s.sliceHandler = sliceHandler;
+	privilege.interrupt.expectPost();
+
+	s.sliceRequested = true;
+	LockSupport.unpark(s.hostThread);
+    }
+
+    /**
+     * Finish the slice that last ended. Copies the registers back to this
+     * processor, along with the used and dirty bits of TLB entries that the
+     * kernel has not rewritten since the slice started. Then advances the
+     * simulated time by one user tick for each instruction the slice
+     * retired, just as <tt>run()</tt> would have, so interrupts that fell due
+     * during the slice are invoked now.
+     *
+     * <p>
+     * If the slice stopped at an exception, the cause and bad virtual address
+     * registers have been set, and the kernel must call
+     * <tt>handleSliceException()</tt> before starting another slice.
+     *
+     * @return	<tt>true</tt> if the slice stopped at an exception.
+     */
+    public boolean endSlice() {
+	Lib.assertTrue(inSlice);
+	inSlice = false;
+
+	Processor s = shadow;
+
+	if (s.failure != null) {
+	    Throwable failure = s.failure;
+	    s.failure = null;
+
+	    if (failure instanceof Error)
+		throw (Error) failure;
+	    throw (RuntimeException) failure;
+	}
+
+	System.arraycopy(s.registers, 0, registers, 0, numUserRegisters);
+	loadTarget = s.loadTarget;
+	loadMask = s.loadMask;
+	loadValue = s.loadValue;
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSize; i++) {
+		if (translations[i] == s.tlbSources[i]) {
+		    translations[i].used |= s.translations[i].used;
+		    translations[i].dirty |= s.translations[i].dirty;
+		}
+		s.tlbSources[i] = null;
+	    }
+	    System.arraycopy(s.tlbPLRU, 0, tlbPLRU, 0, tlbSets);
+
+	    for (int i=0; i<tlbSets; i++) {
+		stats.numTLBSetMisses[i] += s.stats.numTLBSetMisses[i];
+		s.stats.numTLBSetMisses[i] = 0;
 	    }
+	}
+
+	stats.numPageFaults += s.stats.numPageFaults;
+	stats.numTLBMisses += s.stats.numTLBMisses;
+	s.stats.numPageFaults = s.stats.numTLBMisses = 0;
 
+	int retired = s.numRetired;
+	boolean faulted = s.faulted;
+
+	for (int i=0; i<retired; i++)
 	    privilege.interrupt.tick(false);
+
+	return faulted;
+    }
+
+    /**
+     * Invoke the exception handler for the exception that the last slice
+     * stopped at, as <tt>run()</tt> would have when the exception occurred.
+     */
+    public void handleSliceException() {
+	deliverException();
+    }
+
+    /**
+     * Start the host thread that runs this shadow's slices.
+     */
+    private void startHostThread() {
+	hostThread = new Thread(new Runnable() {
+		public void run() { runSlices(); }
+	    }, "processor " + number);
+
+	hostThread.setDaemon(true);
+	hostThread.start();
+    }
+
+    /**
+     * Run each slice as it is requested, and post the slice handler when it
+     * ends. Runs on this shadow's host thread, and never returns.
+     */
+    private void runSlices() {
+	Instruction inst = tracing ? new TracedInstruction() : new Instruction();
+
+	while (true) {
+	    while (!sliceRequested)
+		LockSupport.park(this);
+	    sliceRequested = false;
+
+	    numRetired = 0;
+	    faulted = false;
+
+	    try {
+		while (numRetired < sliceLength)
+		    step(inst);
+	    }
+	    catch (MipsException e) {
+		e.record();
+		retire();
+		faulted = true;
+	    }
+	    catch (Throwable e) {
+		// rethrown by endSlice(), in the kernel
+		failure = e;
+	    }
+
+	    privilege.interrupt.post(sliceHandler);
+	}
+    }
+
+    /**
+     * Print the instruction profile collected by this processor, if
+     * <tt>Processor.profile</tt> is set. Called by <tt>Machine.halt()</tt>.
+     */
+    void printProfile() {
+	if (profile != null)
+	    profile.print(number);
+    }
+
+    /**
+     * Run the basic block starting at the current PC, if there is one. A
+     * block is built for a physical address once execution has reached it
+     * <tt>blockThreshold</tt> times. Blocks never contain branches, jumps,
+     * syscalls, or their delay slots; those are left to the interpreter.
+     *
+     * @return	<tt>true</tt> if at least one instruction was retired.
+     */
+    private boolean runBlock() {
+	int pc = registers[regPC];
+
+	// never enter a block from a delay slot
+	if (registers[regNextPC] != pc+4)
+	    return false;
+
+	// let the interpreter raise any fetch exception
+	int paddr = lookup(pc, 4, accessFetch);
+	if (paddr < 0)
+	    return false;
+
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	BasicBlock[] page = blockCache[ppn];
+	if (page == null) {
+	    page = blockCache[ppn] = new BasicBlock[pageSize / 4];
+	    blockHits[ppn] = new int[pageSize / 4];
+	}
+
+	BasicBlock block = page[index];
+	if (block == null) {
+	    if (++blockHits[ppn][index] < blockThreshold)
+		return false;
+
+	    block = page[index] = new BasicBlock(paddr);
+	}
+	else if (block.epoch != blockEpoch && !block.validate()) {
+	    page[index] = null;
+	    blockHits[ppn][index] = 0;
+	    return false;
+	}
+
+	return block.run() > 0;
+    }
+
+    /**
+     * Test whether an instruction can be part of a basic block. Only
+     * instructions that never change the flow of control, and whose
+     * exceptions can be detected before any state is modified, qualify.
+     *
+     * @param	d	the decoded instruction.
+     * @return	<tt>true</tt> if <tt>runOp()</tt> can execute <i>d</i>.
+     */
+    private static boolean blockable(DecodedInstruction d) {
+	switch (d.operation) {
+	case Mips.ADD:
+	case Mips.SUB:
+	case Mips.MULT:
+	case Mips.DIV:
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	case Mips.SLT:
+	case Mips.AND:
+	case Mips.OR:
+	case Mips.NOR:
+	case Mips.XOR:
+	case Mips.LUI:
+	case Mips.MFLO:
+	case Mips.MFHI:
+	case Mips.MTLO:
+	case Mips.MTHI:
+	case Mips.LOAD:
+	case Mips.STORE:
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Execute a single instruction of a basic block, with exactly the effect
+     * the interpreter would have, except that the PC is not advanced. If the
+     * instruction would cause an exception, nothing is modified and
+     * <tt>false</tt> is returned, so that the interpreter can re-execute it
+     * and raise the exception.
+     *
+     * @param	d	the decoded instruction.
+     * @return	<tt>true</tt> if the instruction was executed.
+     */
+    private boolean runOp(DecodedInstruction d) {
+	long src1, src2, dst;
+	int paddr;
+
+	// read the sources before completing any delayed load
+	if (d.src1Shift)
+	    src1 = d.sh;
+	else
+	    src1 = registers[d.rs];
+
+	if (d.src2Imm)
+	    src2 = d.imm;
+	else
+	    src2 = registers[d.rt];
+
+	if (Lib.test(Mips.UNSIGNED, d.flags)) {
+	    src1 &= 0xFFFFFFFFL;
+	    src2 &= 0xFFFFFFFFL;
+	}
+
+	switch (d.operation) {
+	case Mips.ADD:
+	    dst = src1 + src2;
+	    break;
+	case Mips.SUB:
+	    dst = src1 - src2;
+	    break;
+	case Mips.MULT:
+	    dst = src1 * src2;
+	    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+	    break;
+	case Mips.DIV:
+	    if (src2 == 0)
+		return false;
+
+	    int lo = (int) (src1 / src2);
+	    int hi = (int) (src1 % src2);
+	    if (lo*src2 + hi != src1)
+		return false;
+
+	    registers[regLo] = lo;
+	    registers[regHi] = hi;
+	    dst = 0;
+	    break;
+
+	case Mips.SLL:
+	    dst = src2 << (src1&0x1F);
+	    break;
+	case Mips.SRA:
+	    dst = src2 >> (src1&0x1F);
+	    break;
+	case Mips.SRL:
+	    dst = src2 >>> (src1&0x1F);
+	    break;
+
+	case Mips.SLT:
+	    dst = (src1<src2) ? 1 : 0;
+	    break;
+
+	case Mips.AND:
+	    dst = src1 & src2;
+	    break;
+	case Mips.OR:
+	    dst = src1 | src2;
+	    break;
+	case Mips.NOR:
+	    dst = ~(src1 | src2);
+	    break;
+	case Mips.XOR:
+	    dst = src1 ^ src2;
+	    break;
+	case Mips.LUI:
+	    dst = d.imm << 16;
+	    break;
+
+	case Mips.MFLO:
+	    dst = registers[regLo];
+	    break;
+	case Mips.MFHI:
+	    dst = registers[regHi];
+	    break;
+	case Mips.MTLO:
+	    registers[regLo] = (int) src1;
+	    dst = 0;
+	    break;
+	case Mips.MTHI:
+	    registers[regHi] = (int) src1;
+	    dst = 0;
+	    break;
+
+	case Mips.LOAD:
+	    paddr = lookup(registers[d.rs] + d.imm, d.size, accessRead);
+	    if (paddr < 0)
+		return false;
+
+	    int value = Lib.bytesToInt(mainMemory, paddr, d.size);
+	    if (!Lib.test(Mips.UNSIGNED, d.flags))
+		value = Lib.extend(value, 0, d.size*8);
+
+	    delayedLoad(d.dstReg, value, 0xFFFFFFFF);
+	    return true;
+
+	case Mips.STORE:
+	    paddr = lookup(registers[d.rs] + d.imm, d.size, accessWrite);
+	    if (paddr < 0)
+		return false;
+
+	    Lib.bytesFromInt(mainMemory, paddr, d.size, (int) src2);
+
+	    // a store into code ends the block and revalidates all blocks
+	    if (decodeCache[paddr / pageSize] != null)
+		invalidateBlocks();
+
+	    finishLoad();
+	    return true;
+
+	default:
+	    Lib.assertNotReached();
+	    return false;
 	}
+
+	// if instruction is signed, but carry bit !+ sign bit, bail out
+	if (Lib.test(Mips.OVERFLOW, d.flags) &&
+	    Lib.test(dst,31) != Lib.test(dst,32))
+	    return false;
+
+	finishLoad();
+
+	if (Lib.test(Mips.DST, d.flags) && d.dstReg != 0)
+	    registers[d.dstReg] = (int) dst;
+
+	return true;
+    }
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, found at
+     * physical address <i>paddr</i>, reusing the cached form if the word has
+     * not changed since it was last decoded.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeAt(int paddr, int value) {
+	DecodedInstruction[] page = decodeCache[paddr / pageSize];
+	if (page == null)
+	    page = decodeCache[paddr / pageSize] =
+		new DecodedInstruction[pageSize / 4];
+
+	int index = (paddr % pageSize) / 4;
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value)
+	    decoded = page[index] = new DecodedInstruction(value);
+
+	return decoded;
     }
 
     /**
@@ -175,6 +837,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	forgetLastPages();
     }
 
     /**
@@ -202,74 +865,254 @@ public final class Processor {
     }
 
     /**
-     * Fill the specified TLB entry.
-     *
-     * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Return the current address space identifier, set by the last call to
+     * <tt>setASID()</tt>.
      *
-     * @param	number	the index into the TLB.
-     * @param	entry	the new contents of the TLB entry.
+     * @return	the current ASID.
      */
-    public void writeTLBEntry(int number, TranslationEntry entry) {
+    public int getASID() {
 	Lib.assertTrue(usingTLB);
-	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	translations[number] = new TranslationEntry(entry);
+	return asid;
     }
 
     /**
-     * Return the number of pages of physical memory attached to this simulated
-     * processor.
+     * Set the current address space identifier. From now on, a TLB entry is
+     * only used to translate an address if its <tt>asid</tt> field equals
+     * <i>asid</i>, so entries belonging to other address spaces can be left
+     * in the TLB across a context switch. The ASID is initially 0.
      *
-     * @return	the number of pages of physical memory.
+     * @param	asid	the new ASID.
      */
-    public int getNumPhysPages() {
-	return numPhysPages;
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	if (asid != this.asid) {
+	    this.asid = asid;
+	    forgetLastPages();
+	}
     }
 
     /**
-     * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * Invalidate every TLB entry belonging to the specified address space.
+     * Must be called before an ASID is reused for another address space.
      *
-     * @return	the main memory array.
+     * @param	asid	the ASID whose entries to invalidate.
      */
-    public byte[] getMemory() {
-	return mainMemory;
+    public void flushTLB(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (translations[i].valid && translations[i].asid == asid)
+		translations[i].valid = false;
+	}
+	forgetLastPages();
     }
 
     /**
-     * Concatenate a page number and an offset into an address.
+     * Return the number of entries in each set of this processor's TLB. This
+     * is the same as <tt>getTLBSize()</tt> if the TLB is fully associative.
      *
-     * @param	page	the page number. Must be between <tt>0</tt> and
-     *			<tt>(2<sup>32</sup> / pageSize) - 1</tt>.
-     * @param	offset	the offset within the page. Must be between <tt>0</tt>
-     *			and
-     *			<tt>pageSize - 1</tt>.
-     * @return	a 32-bit address consisting of the specified page and offset.
+     * @return	the associativity of this processor's TLB.
      */
-    public static int makeAddress(int page, int offset) {
-	Lib.assertTrue(page >= 0 && page < maxPages);
-	Lib.assertTrue(offset >= 0 && offset < pageSize);
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
 
-	return (page * pageSize) | offset;
+	return tlbWays;
     }
 
     /**
-     * Extract the page number component from a 32-bit address.
+     * Return the TLB set that may hold a translation for the specified
+     * virtual page. Set <i>s</i> consists of the TLB entries numbered
+     * <tt>s*getTLBAssociativity()</tt> through
+     * <tt>(s+1)*getTLBAssociativity()-1</tt>.
      *
-     * @param	address	the 32-bit address.
-     * @return	the page number component of the address.
+     * @param	vpn	the virtual page number.
+     * @return	the set that <i>vpn</i> maps to.
      */
-    public static int pageFromAddress(int address) {
-	return (int) (((long) address & 0xFFFFFFFFL) / pageSize);
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSet(vpn);
     }
 
     /**
-     * Extract the offset component from an address.
+     * Fill the specified TLB entry.
      *
-     * @param	address	the 32-bit address.
-     * @return	the offset component of the address.
+     * <p>
+     * Within a set, the location of an entry does not affect anything. A
+     * valid entry must be written into the set its virtual page maps to (see
+     * <tt>getTLBSet()</tt>); if the TLB is fully associative, any entry will
+     * do.
+     *
+     * <p>
+     * The entry is stored with the current ASID (see <tt>setASID()</tt>),
+     * whatever its own <tt>asid</tt> field holds, so it translates addresses
+     * only in the address space that is current when it is written.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	the new contents of the TLB entry.
+     */
+    public void writeTLBEntry(int number, TranslationEntry entry) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid || number/tlbWays == tlbSet(entry.vpn),
+		       "TLB entry written to the wrong set");
+
+	translations[number] = new TranslationEntry(entry);
+	translations[number].asid = asid;
+	touchTLBEntry(number);
+	forgetLastPages();
+    }
+
+    /**
+     * Add a translation for the current address space to the TLB, letting
+     * the processor choose where. An entry already holding the same virtual
+     * page of the current address space is overwritten; otherwise an
+     * invalid entry in the page's set is used if there is one; otherwise an
+     * entry is evicted according to <tt>Processor.tlbReplacement</tt> in the
+     * configuration file, which may be <tt>random</tt> (the default),
+     * <tt>fifo</tt>, or <tt>plru</tt> (tree pseudo-LRU).
+     *
+     * @param	entry	the translation to add. Must be valid.
+     * @return	the index of the TLB entry that was written.
+     */
+    public int writeTLBEntry(TranslationEntry entry) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(entry.valid);
+
+	int set = tlbSet(entry.vpn);
+	int first = set*tlbWays;
+	int number = -1;
+
+	for (int i=first; i<first+tlbWays; i++) {
+	    if (translations[i].valid && translations[i].vpn == entry.vpn &&
+		translations[i].asid == asid) {
+		number = i;
+		break;
+	    }
+	    if (number == -1 && !translations[i].valid)
+		number = i;
+	}
+
+	if (number == -1)
+	    number = first + tlbVictim(set);
+
+	writeTLBEntry(number, entry);
+	return number;
+    }
+
+    /**
+     * Return the set that <i>vpn</i> maps to. The page number is hashed so
+     * that consecutive pages are spread over the sets.
+     */
+    private int tlbSet(int vpn) {
+	if (tlbSets == 1)
+	    return 0;
+
+	int hash = vpn * 0x9E3779B1;
+	return ((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % tlbSets;
+    }
+
+    /**
+     * Choose the way to evict from a full TLB set.
+     */
+    private int tlbVictim(int set) {
+	switch (tlbReplacement) {
+	case replaceFIFO:
+	    int way = tlbFIFO[set];
+	    tlbFIFO[set] = (way+1) % tlbWays;
+	    return way;
+
+	case replacePLRU:
+	    // follow the tree bits, which point away from recent accesses
+	    int node = 1;
+	    while (node < tlbWays)
+		node = 2*node + ((tlbPLRU[set] >>> node) & 1);
+	    return node - tlbWays;
+
+	default:
+	    return Lib.random(tlbWays);
+	}
+    }
+
+    /**
+     * Record an access to the specified TLB entry, for pseudo-LRU
+     * replacement.
+     */
+    private void touchTLBEntry(int number) {
+	if (tlbReplacement != replacePLRU)
+	    return;
+
+	int set = number / tlbWays;
+	int bits = tlbPLRU[set];
+
+	// point every node on the path to this way at the other subtree
+	int node = number%tlbWays + tlbWays;
+	while (node > 1) {
+	    int parent = node / 2;
+	    if ((node & 1) == 0)
+		bits |= (1 << parent);
+	    else
+		bits &= ~(1 << parent);
+	    node = parent;
+	}
+
+	tlbPLRU[set] = bits;
+    }
+
+    /**
+     * Return the number of pages of physical memory attached to this simulated
+     * processor.
+     *
+     * @return	the number of pages of physical memory.
+     */
+    public int getNumPhysPages() {
+	return numPhysPages;
+    }
+
+    /**
+     * Return a reference to the physical memory array. The size of this array
+     * is <tt>pageSize * getNumPhysPages()</tt>.
+     *
+     * @return	the main memory array.
+     */
+    public byte[] getMemory() {
+	return mainMemory;
+    }
+
+    /**
+     * Concatenate a page number and an offset into an address.
+     *
+     * @param	page	the page number. Must be between <tt>0</tt> and
+     *			<tt>(2<sup>32</sup> / pageSize) - 1</tt>.
+     * @param	offset	the offset within the page. Must be between <tt>0</tt>
+     *			and
+     *			<tt>pageSize - 1</tt>.
+     * @return	a 32-bit address consisting of the specified page and offset.
+     */
+    public static int makeAddress(int page, int offset) {
+	Lib.assertTrue(page >= 0 && page < maxPages);
+	Lib.assertTrue(offset >= 0 && offset < pageSize);
+
+	return (page * pageSize) | offset;
+    }
+
+    /**
+     * Extract the page number component from a 32-bit address.
+     *
+     * @param	address	the 32-bit address.
+     * @return	the page number component of the address.
+     */
+    public static int pageFromAddress(int address) {
+	return (int) (((long) address & 0xFFFFFFFFL) / pageSize);
+    }
+
+    /**
+     * Extract the offset component from an address.
+     *
+     * @param	address	the 32-bit address.
+     * @return	the offset component of the address.
      */
     public static int offsetFromAddress(int address) {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
@@ -288,78 +1131,157 @@ public final class Processor {
      *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
-     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	access	the kind of memory reference (one of
+     *			<tt>accessFetch</tt>, <tt>accessRead</tt>, or
+     *			<tt>accessWrite</tt>).
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, int access)
+	throws MipsException {
+	int paddr = lookup(vaddr, size, access);
+
+	if (paddr < 0) {
+	    int cause = -paddr - 1;
+
+	    switch (cause) {
+	    case exceptionAddressError:
+		Lib.debug(dbgProcessor, "\t\talignment error");
+		break;
+	    case exceptionPageFault:
+		stats.numPageFaults++;
+		Lib.debug(dbgProcessor, "\t\tpage fault");
+		break;
+	    case exceptionTLBMiss:
+		stats.numTLBMisses++;
+		stats.numTLBSetMisses[tlbSet(pageFromAddress(vaddr))]++;
+		Lib.debug(dbgProcessor, "\t\tTLB miss");
+		break;
+	    case exceptionReadOnly:
+		Lib.debug(dbgProcessor, "\t\tread-only exception");
+		break;
+	    case exceptionBusError:
+		Lib.debug(dbgProcessor, "\t\tbad ppn");
+		break;
+	    }
+
+	    throw mipsException.raise(cause, vaddr);
+	}
+
+	return paddr;
+    }
+
+    /**
+     * Same as <tt>translate()</tt>, but print the translation if processor
+     * debugging is enabled. Used only by <tt>TracedInstruction</tt>.
+     */
+    private int traceTranslate(int vaddr, int size, int access)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
+			       + (access == accessWrite ? ", write" : ", read..."));
+
+	int paddr = translate(vaddr, size, access);
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	return paddr;
+    }
 
+    /**
+     * Do the work of <tt>translate()</tt> without raising an exception. If
+     * the translation succeeds, the used and dirty bits are updated and the
+     * physical address is returned. Otherwise nothing is modified, and
+     * <tt>-(cause+1)</tt> is returned, where <i>cause</i> is the exception
+     * the access would raise.
+     *
+     * <p>
+     * The page of the last successful reference of each kind is remembered,
+     * and a reference to the same page skips the page table or TLB lookup
+     * entirely. Its entry has already been checked, and its used bit (and,
+     * for writes, its dirty bit) is already set. A TLB entry is still
+     * touched, so that pseudo-LRU replacement sees the reference.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	access	the kind of memory reference.
+     * @return		the physical address, or a negative value if a
+     *			translation error would occur.
+     */
+    private int lookup(int vaddr, int size, int access) {
 	// check alignment
-	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
-	}
+	if ((vaddr & (size-1)) != 0)
+	    return -(exceptionAddressError+1);
 
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	if (lastVPN[access] == vpn) {
+	    if (usingTLB)
+		touchTLBEntry(lastEntry[access]);
+	    return lastBase[access] + offset;
+	}
+
+	boolean writing = (access == accessWrite);
+
 	TranslationEntry entry = null;
+	int number = -1;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
-		!translations[vpn].valid) {
-		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
-	    }
+		!translations[vpn].valid)
+		return -(exceptionPageFault+1);
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries in vpn's set for a match
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+	    int first = tlbSet(vpn)*tlbWays;
+	    for (int i=first; i<first+tlbWays; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    translations[i].asid == asid) {
 		    entry = translations[i];
+		    number = i;
+		    touchTLBEntry(i);
 		    break;
 		}
 	    }
-	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
-	    }
+	    if (entry == null)
+		return -(exceptionTLBMiss+1);
 	}
 
 	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
-	}
+	if (entry.readOnly && writing)
+	    return -(exceptionReadOnly+1);
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
-	}
+	if (ppn < 0 || ppn >= numPhysPages)
+	    return -(exceptionBusError+1);
 
 	// set used and dirty bits as appropriate
 	entry.used = true;
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	lastVPN[access] = vpn;
+	lastBase[access] = ppn*pageSize;
+	lastEntry[access] = number;
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
+	return (ppn*pageSize) + offset;
+    }
+
+    /**
+     * Forget the pages remembered by <tt>lookup()</tt>. Must be called
+     * whenever a translation might change, or the kernel might clear a used
+     * or dirty bit.
+     */
+    private void forgetLastPages() {
+	for (int i=0; i<lastVPN.length; i++)
+	    lastVPN[i] = -1;
     }
 
     /**
@@ -372,13 +1294,25 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	return Lib.bytesToInt(mainMemory, translate(vaddr, size, accessRead),
+			      size);
+    }
+
+    /**
+     * Same as <tt>readMem()</tt>, but print the access if processor debugging
+     * is enabled. Used only by <tt>TracedInstruction</tt>.
+     */
+    private int traceReadMem(int vaddr, int size) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
+	int value = Lib.bytesToInt(mainMemory,
+				   traceTranslate(vaddr, size, accessRead),
 				   size);
 
 	if (Lib.test(dbgProcessor))
@@ -398,6 +1332,17 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	writePhysMem(translate(vaddr, size, accessWrite), size, value);
+    }
+
+    /**
+     * Same as <tt>writeMem()</tt>, but print the access if processor
+     * debugging is enabled. Used only by <tt>TracedInstruction</tt>.
+     */
+    private void traceWriteMem(int vaddr, int size, int value)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -406,8 +1351,33 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	writePhysMem(traceTranslate(vaddr, size, accessWrite), size, value);
+    }
+
+    /**
+     * Write <i>value</i> to </i>size</i> bytes of main memory starting at
+     * physical address <i>paddr</i>.
+     */
+    private void writePhysMem(int paddr, int size, int value) {
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// stale blocks must not run after their code has been overwritten
+	if (usingBlocks && decodeCache[paddr / pageSize] != null)
+	    invalidateBlocks();
+    }
+
+    /**
+     * Stop the running block, and make every processor check its blocks
+     * against memory before it next runs them. Each processor keeps its own
+     * blocks, but they are all decoded from the same memory.
+     */
+    private void invalidateBlocks() {
+	blockEpoch++;
+
+	for (Processor processor : processors) {
+	    if (processor != this)
+		processor.blockEpoch++;
+	}
     }
 
     /**
@@ -526,6 +1496,11 @@ public final class Processor {
 
     /** Provides privilege to this processor. */
     private Privilege privilege;
+
+    /** The number of this processor. */
+    private int number;
+    /** All the processors attached to this processor's memory, in order. */
+    private ArrayList<Processor> processors;
     
     /** MIPS registers accessible to the kernel. */
     private int registers[] = new int[numUserRegisters];
@@ -541,12 +1516,45 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /** Number of TLB sets. */
+    private int tlbSets;
+    /** How <tt>writeTLBEntry(TranslationEntry)</tt> picks an entry to evict. */
+    private int tlbReplacement = replaceRandom;
+    /** The next way to evict from each TLB set, for FIFO replacement. */
+    private int[] tlbFIFO;
+    /** The tree bits of each TLB set, for pseudo-LRU replacement. */
+    private int[] tlbPLRU;
+
+    /** The address space identifier TLB entries must match. */
+    private int asid = 0;
+
+    private static final int replaceRandom = 0;
+    private static final int replaceFIFO = 1;
+    private static final int replacePLRU = 2;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /** An instruction fetch. */
+    private static final int accessFetch = 0;
+    /** A data load. */
+    private static final int accessRead = 1;
+    /** A data store. */
+    private static final int accessWrite = 2;
+    /**
+     * The virtual page of the last successful reference of each kind, or -1
+     * if there is none.
+     */
+    private int[] lastVPN = { -1, -1, -1 };
+    /** The physical address of the page in <tt>lastVPN</tt>. */
+    private int[] lastBase = new int[3];
+    /** The TLB entry of the page in <tt>lastVPN</tt>, if using a TLB. */
+    private int[] lastEntry = new int[3];
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -556,34 +1564,142 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. A page's array is allocated the first time an instruction is
+     * fetched from it. Each entry remembers the word it was decoded from, so
+     * an entry whose word has since been overwritten (by a store, by the
+     * kernel, or by <tt>CoffSection.loadPage()</tt>) is simply decoded again.
+     */
+    private DecodedInstruction[][] decodeCache;
+
+    /**
+     * <tt>true</tt> if any processor debug flag was set when this processor
+     * was constructed, in which case every instruction is traced.
+     */
+    private boolean tracing;
+
+    /** Counts of retired instructions, or <tt>null</tt> if not profiling. */
+    private Profile profile = null;
+
+    /** <tt>true</tt> if hot straight-line code is run as basic blocks. */
+    private boolean usingBlocks;
+    /** Basic blocks, indexed like <tt>decodeCache</tt>. */
+    private BasicBlock[][] blockCache;
+    /** The number of times each word was reached without a block. */
+    private int[][] blockHits;
+    /**
+     * Incremented whenever the kernel may run or code may be overwritten.
+     * The running block stops when this changes, and every other block
+     * checks its code against memory before it next runs.
+     */
+    private int blockEpoch = 0;
+    /** The number of times a word must be reached before it gets a block. */
+    private static final int blockThreshold = 16;
+
+    /** The exception thrown by every instruction that raises one. */
+    private MipsException mipsException = new MipsException();
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** The counters that misses are added to. */
+    private Stats stats;
+
+    /** <tt>true</tt> if user code may be run in slices on host threads. */
+    private boolean concurrent = false;
+    /** The most instructions a slice may retire. */
+    private int sliceLength;
+    /** The kernel slice handler, called when a slice ends. */
+    private Runnable sliceHandler = null;
+    /** The shadow that runs this processor's slices, once there is one. */
+    private Processor shadow = null;
+    /** <tt>true</tt> between <tt>startSlice()</tt> and <tt>endSlice()</tt>. */
+    private boolean inSlice = false;
+
+    /** For a shadow, the processor whose slices it runs; otherwise null. */
+    private Processor owner = null;
+    /** For a shadow, the host thread that runs the slices. */
+    private Thread hostThread;
+    /** For a shadow, set by the kernel to start a slice. */
+    private volatile boolean sliceRequested = false;
+    /** For a shadow, the number of instructions the slice has retired. */
+    private int numRetired;
+    /** For a shadow, <tt>true</tt> if the slice stopped at an exception. */
+    private boolean faulted;
+    /** For a shadow, anything unexpected the slice threw. */
+    private Throwable failure = null;
+    /** For a shadow, the TLB entries the slice's copies were made from. */
+    private TranslationEntry[] tlbSources;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
-	    finishLoad();
+	    // the kernel may be about to run on behalf of any processor
+	    for (Processor processor : processors) {
+		processor.finishLoad();
+		processor.forgetLastPages();
+		processor.blockEpoch++;
+	    }
 	}
     }
 
+    /**
+     * A CPU exception raised while executing an instruction. Each processor
+     * has exactly one, which is filled in by <tt>raise()</tt> and thrown
+     * again every time, so delivering an exception allocates nothing. It
+     * records no stack trace, since none is ever printed.
+     */
     private class MipsException extends Exception {
-	public MipsException(int cause) {
+	MipsException() {
+	    super(null, null, false, false);
+	}
+
+	/**
+	 * Prepare this exception to be thrown for the specified cause.
+	 *
+	 * @param	cause	the cause of the exception.
+	 * @return	this exception.
+	 */
+	public MipsException raise(int cause) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 	    this.cause = cause;
+	    hasBadVAddr = false;
+	    return this;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	/**
+	 * Prepare this exception to be thrown for the specified cause, caused
+	 * by an access to the specified virtual address.
+	 *
+	 * @param	cause	the cause of the exception.
+	 * @param	badVAddr	the virtual address that caused it.
+	 * @return	this exception.
+	 */
+	public MipsException raise(int cause, int badVAddr) {
+	    raise(cause);
 
 	    hasBadVAddr = true;
 	    this.badVAddr = badVAddr;
+	    return this;
 	}
 
 	public void handle() {
+	    // the kernel handler may raise this exception again on another
+	    // thread, so nothing may read these fields after it runs
+	    record();
+	    deliverException();
+	}
+
+	/**
+	 * Set the cause and bad virtual address registers for this
+	 * exception, and complete the delayed load in progress.
+	 */
+	void record() {
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -593,20 +1709,37 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
-
-	    Lib.assertTrue(exceptionHandler != null);
-
-	    // autograder might not want kernel to know about this exception
-	    if (!Machine.autoGrader().exceptionHandler(privilege))
-		return;
-	    
-	    exceptionHandler.run();
 	}
 
 	private boolean hasBadVAddr = false;
 	private int cause, badVAddr;
     }	
 
+    /**
+     * Invoke the kernel exception handler for the exception recorded in the
+     * registers.
+     */
+    private void deliverException() {
+	// the kernel may change translations and code used by other
+	// processors too
+	invalidateBlocks();
+	for (Processor processor : processors)
+	    processor.forgetLastPages();
+
+	Lib.assertTrue(exceptionHandler != null);
+
+	// autograder might not want kernel to know about this exception
+	if (!Machine.autoGrader().exceptionHandler(privilege))
+	    return;
+	    
+	exceptionHandler.run();
+    }
+
+    /**
+     * Executes a single instruction. Never looks at the debug flags, so that
+     * the interpreter loop does no tracing work at all when debugging is
+     * off; <tt>TracedInstruction</tt> adds the tracing.
+     */
     private class Instruction {
 	public void run() throws MipsException {
 	    // hopefully this looks familiar to 152 students?
@@ -616,99 +1749,71 @@ public final class Processor {
 	    writeBack();
 	}	
 
-	private boolean test(int flag) {
+	boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+	int load(int vaddr, int size) throws MipsException {
+	    return readMem(vaddr, size);
+	}
 
-	    value = readMem(registers[regPC], 4);
+	void store(int vaddr, int size, int value) throws MipsException {
+	    writeMem(vaddr, size, value);
 	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	void fetch() throws MipsException {
+	    int paddr = translate(registers[regPC], 4, accessFetch);
+	    value = Lib.bytesToInt(mainMemory, paddr);
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // reuse the decoded form of this word if we have already seen it
+	    decoded = decodeAt(paddr, value);
+	}
+	
+	void decode() {
+	    DecodedInstruction d = decoded;
+
+	    op = d.op;
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	    sh = d.sh;
+	    func = d.func;
+	    imm = d.imm;
+
+	    operation = d.operation;
+	    name = d.name;
+	    format = d.format;
+	    flags = d.flags;
+	    size = d.size;
+	    dstReg = d.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + d.branchOffset;
 	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+		jtarget = (registers[regNextPC]&0xF0000000) | d.jumpOffset;
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
 	    // get src1
-	    if (test(Mips.SRC1SH))
+	    if (d.src1Shift)
 		src1 = sh;
 	    else
 		src1 = registers[rs];
 
 	    // get src2
-	    if (test(Mips.SRC2IMM))
+	    if (d.src2Imm)
 		src2 = imm;
 	    else
 		src2 = registers[rt];
@@ -717,135 +1822,9 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
-	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
-	    
-	    if (operation == Mips.INVALID) {
-		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
-				 " rs=" + Lib.toHexString(rs, 2) +
-				 " rt=" + Lib.toHexString(rt, 2) +
-				 " rd=" + Lib.toHexString(rd, 2) +
-				 " sh=" + Lib.toHexString(sh, 2) +
-				 " func=" + Lib.toHexString(func, 2) +
-				 "\n");
-		return;
-	    }
-
-	    int spaceIndex = name.indexOf(' ');
-	    Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
-
-	    String instname = name.substring(0, spaceIndex);
-	    char[] args = name.substring(spaceIndex+1).toCharArray();
-
-	    System.out.print(instname + "\t");
-
-	    int minCharsPrinted = 0, maxCharsPrinted = 0;
-
-	    for (int i=0; i<args.length; i++) {
-		switch (args[i]) {
-		case Mips.RS:
-		    System.out.print("$" + rs);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RT:
-		    System.out.print("$" + rt);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-
-		    if (Lib.test(dbgFullDisassemble) &&
-			(i!=0 || !test(Mips.DST)) &&
-			!test(Mips.DELAYEDLOAD)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rt]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RETURNADDRESS:
-		    if (rd == 31)
-			continue;
-		case Mips.RD:
-		    System.out.print("$" + rd);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    break;
-		case Mips.IMM:
-		    System.out.print(imm);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 6;
-		    break;
-		case Mips.SHIFTAMOUNT:
-		    System.out.print(sh);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 2;
-		    break;
-		case Mips.ADDR:
-		    System.out.print(imm + "($" + rs);
-		    minCharsPrinted += 4;
-		    maxCharsPrinted += 5;
-
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    
-		    System.out.print(")");
-		    break;
-		case Mips.TARGET:
-		    System.out.print("0x" + Lib.toHexString(jtarget));
-		    minCharsPrinted += 10;
-		    maxCharsPrinted += 10;
-		    break;
-		default:
-		    Lib.assertTrue(false);    
-		}
-		if (i+1 < args.length) {
-		    System.out.print(", ");
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 2;
-		}
-		else {
-		    // most separation possible is tsi, 5+1+1=7,
-		    // thankfully less than 8 (makes this possible)
-		    Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
-		    // longest string is stj, which is 40-42 chars w/ -d M;
-		    // go for 48
-		    while ((minCharsPrinted%8) != 0) {
-			System.out.print(" ");
-			minCharsPrinted++;
-			maxCharsPrinted++;
-		    }
-		    while (minCharsPrinted < 48) {
-			System.out.print("\t");
-			minCharsPrinted += 8;
-		    }
-		}
-	    }
-
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
-	}
-
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -862,15 +1841,13 @@ public final class Processor {
 		registers[regHi] = (int) Lib.extract(dst, 32, 32);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		if (src2 == 0)
+		    throw mipsException.raise(exceptionOverflow);
+
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    throw mipsException.raise(exceptionOverflow);
 		break;
 
 	    case Mips.SLL:
@@ -939,10 +1916,10 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw mipsException.raise(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = load(addr, size);
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -952,7 +1929,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -963,7 +1940,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -974,11 +1951,11 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		store(addr, size, (int) src2);
 		break;
 
 	    case Mips.SWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -988,11 +1965,11 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.SWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1002,24 +1979,24 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.UNIMPL:
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw mipsException.raise(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw mipsException.raise(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1032,27 +2009,16 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	DecodedInstruction decoded;
+	int value, op, rs, rt, rd, sh, func, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +2029,484 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An <tt>Instruction</tt> that prints what it does, as selected by the
+     * processor and disassembly debug flags.
+     */
+    private class TracedInstruction extends Instruction {
+	int load(int vaddr, int size) throws MipsException {
+	    return traceReadMem(vaddr, size);
+	}
+
+	void store(int vaddr, int size, int value) throws MipsException {
+	    traceWriteMem(vaddr, size, value);
+	}
+
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    int vaddr = registers[regPC];
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    int paddr = traceTranslate(vaddr, 4, accessFetch);
+	    value = Lib.bytesToInt(mainMemory, paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = decodeAt(paddr, value);
+	}
+
+	void decode() {
+	    super.decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
+
+	private void print() {
+	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
+		!Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+	    
+	    if (operation == Mips.INVALID) {
+		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
+				 " rs=" + Lib.toHexString(rs, 2) +
+				 " rt=" + Lib.toHexString(rt, 2) +
+				 " rd=" + Lib.toHexString(rd, 2) +
+				 " sh=" + Lib.toHexString(sh, 2) +
+				 " func=" + Lib.toHexString(func, 2) +
+				 "\n");
+		return;
+	    }
+
+	    int spaceIndex = name.indexOf(' ');
+	    Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
+
+	    String instname = name.substring(0, spaceIndex);
+	    char[] args = name.substring(spaceIndex+1).toCharArray();
+
+	    System.out.print(instname + "\t");
+
+	    int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+	    for (int i=0; i<args.length; i++) {
+		switch (args[i]) {
+		case Mips.RS:
+		    System.out.print("$" + rs);
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 3;
+		    
+		    if (Lib.test(dbgFullDisassemble)) {
+			System.out.print("#0x" +
+					 Lib.toHexString(registers[rs]));
+			minCharsPrinted += 11;
+			maxCharsPrinted += 11;
+		    }
+		    break;
+		case Mips.RT:
+		    System.out.print("$" + rt);
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 3;
+
+		    if (Lib.test(dbgFullDisassemble) &&
+			(i!=0 || !test(Mips.DST)) &&
+			!test(Mips.DELAYEDLOAD)) {
+			System.out.print("#0x" +
+					 Lib.toHexString(registers[rt]));
+			minCharsPrinted += 11;
+			maxCharsPrinted += 11;
+		    }
+		    break;
+		case Mips.RETURNADDRESS:
+		    if (rd == 31)
+			continue;
+		case Mips.RD:
+		    System.out.print("$" + rd);
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 3;
+		    break;
+		case Mips.IMM:
+		    System.out.print(imm);
+		    minCharsPrinted += 1;
+		    maxCharsPrinted += 6;
+		    break;
+		case Mips.SHIFTAMOUNT:
+		    System.out.print(sh);
+		    minCharsPrinted += 1;
+		    maxCharsPrinted += 2;
+		    break;
+		case Mips.ADDR:
+		    System.out.print(imm + "($" + rs);
+		    minCharsPrinted += 4;
+		    maxCharsPrinted += 5;
+
+		    if (Lib.test(dbgFullDisassemble)) {
+			System.out.print("#0x" +
+					 Lib.toHexString(registers[rs]));
+			minCharsPrinted += 11;
+			maxCharsPrinted += 11;
+		    }
+		    
+		    System.out.print(")");
+		    break;
+		case Mips.TARGET:
+		    System.out.print("0x" + Lib.toHexString(jtarget));
+		    minCharsPrinted += 10;
+		    maxCharsPrinted += 10;
+		    break;
+		default:
+		    Lib.assertTrue(false);    
+		}
+		if (i+1 < args.length) {
+		    System.out.print(", ");
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 2;
+		}
+		else {
+		    // most separation possible is tsi, 5+1+1=7,
+		    // thankfully less than 8 (makes this possible)
+		    Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
+		    // longest string is stj, which is 40-42 chars w/ -d M;
+		    // go for 48
+		    while ((minCharsPrinted%8) != 0) {
+			System.out.print(" ");
+			minCharsPrinted++;
+			maxCharsPrinted++;
+		    }
+		    while (minCharsPrinted < 48) {
+			System.out.print("\t");
+			minCharsPrinted += 8;
+		    }
+		}
+	    }
+
+	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
+		!Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+
+	void writeBack() throws MipsException {
+	    super.writeBack();
+
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+    }
+
+    /**
+     * A run of straight-line instructions within one physical page, decoded
+     * once and then executed without the interpreter's fetch, decode, and
+     * write-back stages. The block still ticks the clock once for every
+     * instruction it retires, so simulated time is the same as when
+     * interpreting.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    this.paddr = paddr;
+
+	    int end = (paddr / pageSize + 1) * pageSize;
+	    int count = 0;
+	    DecodedInstruction[] found = new DecodedInstruction[(end-paddr)/4];
+
+	    for (int addr=paddr; addr<end; addr+=4) {
+		DecodedInstruction d =
+		    decodeAt(addr, Lib.bytesToInt(mainMemory, addr));
+		if (!blockable(d))
+		    break;
+		found[count++] = d;
+	    }
+
+	    ops = new DecodedInstruction[count];
+	    System.arraycopy(found, 0, ops, 0, count);
+
+	    epoch = blockEpoch;
+	}
+
+	/**
+	 * Check that the code this block was built from is still in memory.
+	 *
+	 * @return	<tt>true</tt> if the block may still be run.
+	 */
+	boolean validate() {
+	    for (int i=0; i<ops.length; i++) {
+		if (Lib.bytesToInt(mainMemory, paddr + i*4) != ops[i].value)
+		    return false;
+	    }
+
+	    epoch = blockEpoch;
+	    return true;
+	}
+
+	/**
+	 * Run this block, starting at the current PC. Stops early if an
+	 * instruction would cause an exception, or if the kernel ran during a
+	 * tick.
+	 *
+	 * @return	the number of instructions retired.
+	 */
+	int run() {
+	    for (int i=0; i<ops.length; i++) {
+		if (!runOp(ops[i]))
+		    return i;
+
+		advancePC(registers[regNextPC]+4);
+		retire();
+
+		if (epoch != blockEpoch)
+		    return i+1;
+	    }
+
+	    return ops.length;
+	}
+
+	/** The physical address of the first instruction. */
+	final int paddr;
+	/** The instructions, none of which branch. */
+	final DecodedInstruction[] ops;
+	/** The value of <tt>blockEpoch</tt> when this block was last checked. */
+	int epoch;
+    }
+
+    /**
+     * Counts of the instructions retired by a processor: by PC, by entry in
+     * the opcode tables, and by the size of each load and store. Only
+     * primitive arrays are updated while counting, so profiling adds little
+     * to the cost of each instruction.
+     */
+    private static class Profile {
+	/**
+	 * Count an instruction that completed without an exception.
+	 *
+	 * @param	pc	the virtual address of the instruction.
+	 * @param	d	the decoded instruction.
+	 */
+	void retire(int pc, DecodedInstruction d) {
+	    numRetired++;
+
+	    int index = pc >>> 2;
+	    if (index >= pcCounts.length) {
+		if (index >= maxPCs) {
+		    numOtherPCs++;
+		    index = -1;
+		}
+		else {
+		    long[] counts =
+			new long[Math.min(Math.max(index+1, pcCounts.length*2),
+					  maxPCs)];
+		    System.arraycopy(pcCounts, 0, counts, 0, pcCounts.length);
+		    pcCounts = counts;
+		}
+	    }
+	    if (index >= 0)
+		pcCounts[index]++;
+
+	    opCounts[d.opIndex]++;
+
+	    switch (d.operation) {
+	    case Mips.LOAD:
+		loadCounts[d.size]++;
+		break;
+	    case Mips.LWL:
+	    case Mips.LWR:
+		loadCounts[4]++;
+		break;
+	    case Mips.STORE:
+		storeCounts[d.size]++;
+		break;
+	    case Mips.SWL:
+	    case Mips.SWR:
+		storeCounts[4]++;
+		break;
+	    }
+	}
+
+	/**
+	 * Print the hottest PCs and opcodes, most frequent first, and the
+	 * number of loads and stores of each size.
+	 *
+	 * @param	number	the number of the processor.
+	 */
+	void print(int number) {
+	    System.out.println("Processor " + number + " profile: "
+			       + numRetired + " instructions retired");
+	    if (numRetired == 0)
+		return;
+
+	    System.out.println("Hottest PCs:");
+	    Integer[] pcs = sortByCount(pcCounts);
+	    for (int i=0; i<pcs.length && i<maxLines; i++) {
+		long count = pcCounts[pcs[i]];
+		System.out.println("\t0x" + Lib.toHexString(pcs[i] << 2) + "\t"
+				   + count + "\t" + percent(count));
+	    }
+	    if (numOtherPCs != 0)
+		System.out.println("\t(above 0x" + Lib.toHexString(maxPCs << 2)
+				   + ")\t" + numOtherPCs + "\t"
+				   + percent(numOtherPCs));
+
+	    System.out.println("Opcodes:");
+	    Integer[] ops = sortByCount(opCounts);
+	    for (int i=0; i<ops.length; i++) {
+		String name = Mips.lookup(ops[i]).name;
+		long count = opCounts[ops[i]];
+		System.out.println("\t" + name.substring(0, name.indexOf(' '))
+				   + "\t" + count + "\t" + percent(count));
+	    }
+
+	    System.out.println("Memory accesses: loads " + loadCounts[1] + "/"
+			       + loadCounts[2] + "/" + loadCounts[4]
+			       + ", stores " + storeCounts[1] + "/"
+			       + storeCounts[2] + "/" + storeCounts[4]
+			       + " (byte/half/word)");
+	}
+
+	private String percent(long count) {
+	    return (count * 1000 / numRetired) / 10.0 + "%";
+	}
+
+	/**
+	 * Return the indices of the non-zero entries in <i>counts</i>, with
+	 * the largest count first.
+	 */
+	private static Integer[] sortByCount(final long[] counts) {
+	    int n = 0;
+	    for (int i=0; i<counts.length; i++) {
+		if (counts[i] != 0)
+		    n++;
+	    }
+
+	    Integer[] indices = new Integer[n];
+	    n = 0;
+	    for (int i=0; i<counts.length; i++) {
+		if (counts[i] != 0)
+		    indices[n++] = i;
+	    }
+
+	    Arrays.sort(indices, new Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			return Long.compare(counts[b], counts[a]);
+		    }
+		});
+
+	    return indices;
+	}
+
+	private long numRetired = 0;
+	private long numOtherPCs = 0;
+	private long[] pcCounts = new long[pageSize];
+	private long[] opCounts = new long[Mips.numIndices];
+	private long[] loadCounts = new long[5];
+	private long[] storeCounts = new long[5];
+
+	/** The number of hot PCs to print. */
+	private static final int maxLines = 20;
+	/** PCs at or above this word address are counted together. */
+	private static final int maxPCs = 0x100000;
+    }
+
+    /**
+     * The register-independent part of decoding a single instruction word.
+     * Everything here depends only on the word itself, so it is computed once
+     * and then reused every time the word is fetched from the same physical
+     * address.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    int target = Lib.extract(value, 0, 26);
+	    int imm = Lib.extend(value, 0, 16);
+
+	    switch (op) {
+	    case 0:
+		opIndex = Mips.specialIndex + func;
+		break;
+	    case 1:
+		opIndex = Mips.regimmIndex + rt;
+		break;
+	    default:
+		opIndex = op;
+		break;
+	    }
+
+	    Mips info = Mips.lookup(opIndex);
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch and jump offsets, added to nextPC when decoding
+	    branchOffset = imm<<2;
+	    jumpOffset = target<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	    this.imm = imm;
+
+	    src1Shift = Lib.test(Mips.SRC1SH, flags);
+	    src2Imm = Lib.test(Mips.SRC2IMM, flags);
+	}
+
+	/** The instruction word this was decoded from. */
+	final int value;
+	
+	final int op, rs, rt, rd, sh, func;
+	final int imm, branchOffset, jumpOffset;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+	/** The index of this instruction's entry, for <tt>Mips.lookup()</tt>. */
+	final int opIndex;
+	final boolean src1Shift, src2Imm;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -1083,6 +2527,26 @@ public final class Processor {
 	int format;
 	int flags;
 
+	/**
+	 * Return an entry of the three opcode tables, numbered one after the
+	 * other: <tt>optable</tt> from 0, <tt>specialtable</tt> from
+	 * <tt>specialIndex</tt>, and <tt>regimmtable</tt> from
+	 * <tt>regimmIndex</tt>.
+	 */
+	static Mips lookup(int index) {
+	    if (index < specialIndex)
+		return optable[index];
+	    else if (index < regimmIndex)
+		return specialtable[index - specialIndex];
+	    else
+		return regimmtable[index - regimmIndex];
+	}
+
+	static final int
+	    specialIndex = 64,
+	    regimmIndex = 128,
+	    numIndices = 160;
+
 	// operation types
 	static final int
 	    INVALID	= 0,
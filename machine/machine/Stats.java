@@ -20,15 +20,25 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + (idleTicks > 0 ? ", idle " + idleTicks : ""));
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBSetMisses != null && numTLBSetMisses.length > 1) {
+	    System.out.print("TLB misses by set:");
+	    for (int i=0; i<numTLBSetMisses.length; i++)
+		System.out.print(" " + numTLBSetMisses[i]);
+	    System.out.println();
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numTCBPoolHits + numTCBPoolMisses > 0)
+	    System.out.println("TCB pool: hits " + numTCBPoolHits
+			       + ", misses " + numTCBPoolMisses);
     }
 
     /**
@@ -44,6 +54,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that Nachos has skipped over while
+     * idle. See <tt>Interrupt.idle()</tt>.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,10 +72,25 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of TLB misses that have occurred in each TLB set, or
+     * <tt>null</tt> if there is no TLB.
+     */
+    public int[] numTLBSetMisses = null;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The number of TCBs that were started on a pooled Java thread. See
+     * <tt>TCB.poolSize</tt>.
+     */
+    public int numTCBPoolHits = 0;
+    /**
+     * The number of TCBs that needed a new Java thread while pooling was
+     * enabled.
+     */
+    public int numTCBPoolMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -30,6 +30,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	oneShotInterrupt = new Runnable() {
+		public void run() { oneShotInterrupt(); }
+	    };
+	
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +54,52 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Choose whether the timer interrupts periodically. If not, the timer
+     * only interrupts at the times requested by <tt>setOneShot()</tt>, so a
+     * kernel can avoid timer interrupts it has no use for.
+     *
+     * @param	periodic	<tt>false</tt> to stop the periodic interrupts,
+     *				<tt>true</tt> to start them again.
+     */
+    public void setPeriodic(boolean periodic) {
+	if (periodic == this.periodic)
+	    return;
+
+	this.periodic = periodic;
+
+	if (periodic)
+	    scheduleInterrupt();
+	else
+	    pendingTimer.cancel();
+    }
+
+    /**
+     * Request a single timer interrupt at the specified time, replacing any
+     * earlier request. If the time has already come, the interrupt occurs at
+     * the next tick. Periodic interrupts, if any, continue as usual.
+     *
+     * @param	time	the time at which to interrupt.
+     */
+    public void setOneShot(long time) {
+	long delay = Math.max(time - getTime(), 1);
+
+	if (pendingOneShot == null)
+	    pendingOneShot =
+		privilege.interrupt.schedulePending(delay, "timer", oneShotInterrupt);
+	else
+	    pendingOneShot.reschedule(delay);
+    }
+
+    /**
+     * Cancel the request made by the last call to <tt>setOneShot()</tt>, if
+     * it has not yet been satisfied.
+     */
+    public void cancelOneShot() {
+	if (pendingOneShot != null)
+	    pendingOneShot.cancel();
+    }
+
     /**
      * Get the current time.
      *
@@ -61,6 +111,10 @@ public final class Timer {
 
     private void timerInterrupt() {
 	scheduleInterrupt();
+	oneShotInterrupt();
+    }
+
+    private void oneShotInterrupt() {
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -73,16 +127,29 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	if (pendingTimer == null)
+	    pendingTimer =
+		privilege.interrupt.schedulePending(delay, "timer", timerInterrupt);
+	else
+	    pendingTimer.reschedule(delay);
     }
 
     private void scheduleAutoGraderInterrupt() {
-	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	if (pendingAutoGrader == null)
+	    pendingAutoGrader =
+		privilege.interrupt.schedulePending(1, "timerAG", autoGraderInterrupt);
+	else
+	    pendingAutoGrader.reschedule(1);
     }
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    private Runnable oneShotInterrupt;
     private Runnable autoGraderInterrupt;
+    private Interrupt.PendingInterrupt pendingTimer = null;
+    private Interrupt.PendingInterrupt pendingAutoGrader = null;
+    private Interrupt.PendingInterrupt pendingOneShot = null;
+    private boolean periodic = true;
 
     private Privilege privilege;
     private Runnable handler = null;
@@ -35,6 +35,24 @@ public final class TranslationEntry {
 	this.dirty = dirty;
     }       
 
+    /**
+     * Allocate a new translation entry belonging to the specified address
+     * space, with the specified initial state.
+     *
+     * @param	asid		the address space identifier.
+     * @param	vpn		the virtual page numben.
+     * @param	ppn		the physical page number.
+     * @param	valid		the valid bit.
+     * @param	readOnly	the read-only bit.
+     * @param	used		the used bit.
+     * @param	dirty		the dirty bit.
+     */
+    public TranslationEntry(int asid, int vpn, int ppn, boolean valid,
+			    boolean readOnly, boolean used, boolean dirty) {
+	this(vpn, ppn, valid, readOnly, used, dirty);
+	this.asid = asid;
+    }
+
     /**
      * Allocate a new translation entry, copying the contents of an existing
      * one.
@@ -42,6 +60,7 @@ public final class TranslationEntry {
      * @param	entry	the translation entry to copy.
      */
     public TranslationEntry(TranslationEntry entry) {
+	asid = entry.asid;
 	vpn = entry.vpn;
 	ppn = entry.ppn;
 	valid = entry.valid;
@@ -50,6 +69,14 @@ public final class TranslationEntry {
 	dirty = entry.dirty;
     }
 
+    /**
+     * The address space identifier. A TLB entry only matches while the
+     * processor's ASID (see <tt>Processor.setASID()</tt>) is the same.
+     * <tt>Processor.writeTLBEntry()</tt> sets it to the current ASID. Ignored
+     * in page tables.
+     */
+    public int asid;
+
     /** The virtual page number. */
     public int vpn;
     
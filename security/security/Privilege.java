@@ -149,6 +149,20 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Schedule an interrupt to occur at some time in the future, like
+	 * <tt>schedule()</tt>, and return a handle to it.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 * @param	type	a name for the type of interrupt being
+	 *			scheduled.
+	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can cancel or reschedule the interrupt.
+	 */
+	public Interrupt.PendingInterrupt schedulePending(long when, String type,
+							  Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +172,23 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Note that a host thread has started work that it will report by
+	 * calling <tt>post()</tt> exactly once. Until then,
+	 * <tt>Interrupt.idle()</tt> waits for the report instead of letting
+	 * time pass.
+	 */
+	public void expectPost();
+
+	/**
+	 * Invoke the specified handler as an interrupt at the next tick.
+	 * Unlike the other methods here, this may be called from any host
+	 * thread.
+	 *
+	 * @param	handler	the interrupt handler to call.
+	 */
+	public void post(Runnable handler);
     }
 
     /**
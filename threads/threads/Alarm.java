@@ -1,6 +1,7 @@
 package nachos.threads;
 
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 
 import nachos.machine.*;
 
@@ -15,11 +16,29 @@ public class Alarm {
      *
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
+     *
+     * <p>
+     * If <tt>Alarm.tickless</tt> is set in the configuration file, the timer
+     * is told not to interrupt periodically. Instead, the alarm asks it for a
+     * single interrupt at the earliest time a sleeping thread must wake, or a
+     * time slice must end. Time slices are only timed while another thread
+     * is ready to run.
      */
     public Alarm() {
+        tickless = Config.getBoolean("Alarm.tickless", false);
+
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() { timerInterrupt(); }
         });
+
+        if (tickless) {
+            Machine.timer().setPeriodic(false);
+
+            boolean intStatus = Machine.interrupt().disable();
+            if (KThread.numReadyThreads() > 0)
+                threadReady();
+            Machine.interrupt().restore(intStatus);
+        }
     }
 
     /**
@@ -32,19 +51,60 @@ public class Alarm {
         Machine.interrupt().disable();
 
         long now = Machine.timer().getTime();
-        SleepingThread temp;
 
-        for(int index = 0; index < sleepingThreads.size(); index++) {
+        while (!sleepingThreads.isEmpty() &&
+               sleepingThreads.peek().wakeTime <= now)
+            wake(sleepingThreads.poll());
 
-            temp = sleepingThreads.get(index);
-            if(temp.wakeTime > now) continue;
+        boolean preempt = true;
 
-            temp.thread.ready();
-            sleepingThreads.remove(index);
+        if (tickless) {
+            preempt = (sliceEnd != -1 && sliceEnd <= now);
+            if (preempt)
+                sliceEnd = -1;
+
+            // the next thread gets a full slice if others are still waiting
+            if (sliceEnd == -1 && KThread.numReadyThreads() > 0)
+                sliceEnd = now + Stats.TimerTicks;
+
+            setTimer();
         }
 
         Machine.interrupt().enable();     
-        KThread.currentThread().yield();   
+        if (preempt)
+            KThread.currentThread().yield();   
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> when the ready queue stops being
+     * empty. In tickless mode, starts timing the current thread's slice,
+     * since from now on it can be preempted. Interrupts must be disabled.
+     */
+    void threadReady() {
+        if (!tickless || sliceEnd != -1)
+            return;
+
+        sliceEnd = Machine.timer().getTime() + Stats.TimerTicks;
+        setTimer();
+    }
+
+    /**
+     * In tickless mode, ask the timer to interrupt at the earliest time a
+     * sleeping thread must wake or the current slice ends, if any.
+     */
+    private void setTimer() {
+        long next = sliceEnd;
+
+        if (!sleepingThreads.isEmpty()) {
+            long wakeTime = sleepingThreads.peek().wakeTime;
+            if (next == -1 || wakeTime < next)
+                next = wakeTime;
+        }
+
+        if (next == -1)
+            Machine.timer().cancelOneShot();
+        else
+            Machine.timer().setOneShot(next);
     }
 
     /**
@@ -62,28 +122,90 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
         long wakeTime = Machine.timer().getTime() + x;
         
         Machine.interrupt().disable();
 
         KThread thread = KThread.currentThread();
-        SleepingThread sleepingThread = new SleepingThread(thread, wakeTime);
+        SleepingThread sleepingThread =
+            new SleepingThread(thread, wakeTime, numSleeps++);
         sleepingThreads.add(sleepingThread);
+        sleepers.put(thread, sleepingThread);
+
+        if (tickless)
+            setTimer();
 
-        thread.sleep();
+        KThread.sleep(Scheduler.blockedOnAlarm);
         Machine.interrupt().enable(); 
     }
 
-    private class SleepingThread {
+    /**
+     * Wake the specified thread now if it is sleeping in
+     * <tt>waitUntil()</tt>, so that <tt>waitUntil()</tt> returns early.
+     *
+     * @param	thread	the thread to wake.
+     * @return	<tt>true</tt> if the thread was sleeping.
+     */
+    public boolean cancel(KThread thread) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        SleepingThread sleepingThread = sleepers.get(thread);
+        if (sleepingThread != null) {
+            sleepingThreads.remove(sleepingThread);
+            wake(sleepingThread);
+
+            if (tickless)
+                setTimer();
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return sleepingThread != null;
+    }
+
+    /**
+     * Move a thread that is no longer in <tt>sleepingThreads</tt> to the
+     * ready queue.
+     */
+    private void wake(SleepingThread sleepingThread) {
+        sleepers.remove(sleepingThread.thread);
+        sleepingThread.thread.ready();
+    }
+
+    private class SleepingThread implements Comparable<SleepingThread> {
         private KThread thread;
         private long wakeTime;
+        private long order;
 
-        public SleepingThread(KThread thread, long wakeTime) {
+        public SleepingThread(KThread thread, long wakeTime, long order) {
             this.thread = thread;
             this.wakeTime = wakeTime;
+            this.order = order;
+        }
+
+        // threads due at the same time wake in the order they slept
+        public int compareTo(SleepingThread other) {
+            if (wakeTime != other.wakeTime)
+                return (wakeTime < other.wakeTime) ? -1 : 1;
+            else
+                return Long.compare(order, other.order);
         }
     }
 
-    private static Vector<SleepingThread> sleepingThreads = new Vector<SleepingThread>();
+    /** The sleeping threads, earliest wake time first. */
+    private PriorityQueue<SleepingThread> sleepingThreads =
+        new PriorityQueue<SleepingThread>();
+    /** The entry of each sleeping thread in <tt>sleepingThreads</tt>. */
+    private HashMap<KThread, SleepingThread> sleepers =
+        new HashMap<KThread, SleepingThread>();
+    /** Number of times <tt>waitUntil()</tt> was called. */
+    private long numSleeps = 0;
+
+    /** <tt>true</tt> if the timer only interrupts when the alarm asks. */
+    private boolean tickless;
+    /**
+     * In tickless mode, the time the current slice ends, or -1 if no other
+     * thread was ready to run when it began.
+     */
+    private long sliceEnd = -1;
 }
\ No newline at end of file
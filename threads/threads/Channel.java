@@ -0,0 +1,274 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from speakers to listeners through a
+ * bounded buffer. Unlike a <tt>Communicator</tt>, a speaker does not wait for
+ * a listener: it only waits while the buffer is full, and a listener only
+ * waits while it is empty. Words are received in the order they were spoken.
+ *
+ * <p>
+ * <tt>speakAll()</tt> and <tt>listenInto()</tt> move many words each time
+ * they get the lock, so a pipeline can pass a batch for the cost of one
+ * context switch rather than two per word. <tt>trySpeak()</tt> and
+ * <tt>tryListen()</tt> never block.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can hold
+     *				before speakers must wait.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+    }
+
+    /**
+     * Add a word to the channel, waiting while the channel is full.
+     *
+     * @param	word	the word to send.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	while (count == buffer.length)
+	    notFull.sleep();
+
+	put(word);
+
+	lock.release();
+    }
+
+    /**
+     * Add a word to the channel if there is room for it.
+     *
+     * @param	word	the word to send.
+     * @return	<tt>true</tt> if the word was added, or <tt>false</tt> if
+     *		the channel was full.
+     */
+    public boolean trySpeak(int word) {
+	lock.acquire();
+
+	boolean spoken = (count < buffer.length);
+	if (spoken)
+	    put(word);
+
+	lock.release();
+
+	return spoken;
+    }
+
+    /**
+     * Add all the words in an array to the channel, in order, waiting
+     * whenever the channel is full. Words spoken by other threads at the same
+     * time may fall between them if this has to wait.
+     *
+     * @param	words	the words to send.
+     */
+    public void speakAll(int[] words) {
+	lock.acquire();
+
+	int spoken = 0;
+	while (spoken < words.length) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    boolean wasEmpty = (count == 0);
+
+	    int n = Math.min(words.length - spoken, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+	    int first = Math.min(n, buffer.length - tail);
+
+	    System.arraycopy(words, spoken, buffer, tail, first);
+	    System.arraycopy(words, spoken + first, buffer, 0, n - first);
+
+	    count += n;
+	    spoken += n;
+
+	    if (wasEmpty)
+		notEmpty.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Remove a word from the channel, waiting while the channel is empty.
+     *
+     * @return	the word received.
+     */
+    public int listen() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int word = take();
+
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Remove a word from the channel if there is one.
+     *
+     * @return	the word received, or <tt>null</tt> if the channel was empty.
+     */
+    public Integer tryListen() {
+	lock.acquire();
+
+	Integer word = null;
+	if (count > 0)
+	    word = take();
+
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Remove as many words from the channel as are in it, up to the length of
+     * an array, into the start of the array. Waits while the channel is
+     * empty, so at least one word is received unless the array is empty.
+     *
+     * @param	words	the array to receive the words into.
+     * @return	the number of words received.
+     */
+    public int listenInto(int[] words) {
+	if (words.length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	boolean wasFull = (count == buffer.length);
+
+	int n = Math.min(words.length, count);
+	int first = Math.min(n, buffer.length - head);
+
+	System.arraycopy(buffer, head, words, 0, first);
+	System.arraycopy(buffer, 0, words, first, n - first);
+
+	head = (head + n) % buffer.length;
+	count -= n;
+
+	if (wasFull)
+	    notFull.wakeAll();
+
+	lock.release();
+
+	return n;
+    }
+
+    /**
+     * Return the number of words the channel can hold.
+     *
+     * @return	the capacity of the channel.
+     */
+    public int getCapacity() {
+	return buffer.length;
+    }
+
+    /**
+     * Append a word to the buffer, which must not be full. Listeners only
+     * wait while the buffer is empty, so they are only woken when it stops
+     * being empty.
+     */
+    private void put(int word) {
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+
+	if (count == 1)
+	    notEmpty.wakeAll();
+    }
+
+    /**
+     * Remove the word at the head of the buffer, which must not be empty.
+     * Speakers only wait while the buffer is full, so they are only woken
+     * when it stops being full.
+     */
+    private int take() {
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+
+	if (count-- == buffer.length)
+	    notFull.wakeAll();
+
+	return word;
+    }
+
+    private static class Speaker implements Runnable {
+	Speaker(Channel channel, int[] words) {
+	    this.channel = channel;
+	    this.words = words;
+	}
+
+	public void run() {
+	    channel.speakAll(words);
+	}
+
+	private Channel channel;
+	private int[] words;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	Channel channel = new Channel(4);
+
+	// the calls that do not block, on an empty and on a full channel
+	Lib.assertTrue(channel.tryListen() == null);
+	for (int i=0; i<4; i++)
+	    Lib.assertTrue(channel.trySpeak(i));
+	Lib.assertTrue(!channel.trySpeak(4));
+	Lib.assertTrue(channel.tryListen() == 0);
+	Lib.assertTrue(channel.trySpeak(4));
+
+	// the words now wrap around the end of the buffer
+	int[] words = new int[8];
+	Lib.assertTrue(channel.listenInto(words) == 4);
+	for (int i=0; i<4; i++)
+	    Lib.assertTrue(words[i] == i+1);
+
+	channel.speakAll(new int[] { 5, 6, 7, 8 });
+	Lib.assertTrue(channel.listenInto(words) == 4);
+	for (int i=0; i<4; i++)
+	    Lib.assertTrue(words[i] == i+5);
+
+	// more words than the channel holds, so the speaker has to wait
+	int[] spoken = new int[10];
+	for (int i=0; i<spoken.length; i++)
+	    spoken[i] = i*i;
+
+	new KThread(new Speaker(channel, spoken)).setName("speaker").fork();
+
+	int received = 0;
+	while (received < spoken.length) {
+	    int n = channel.listenInto(words);
+	    Lib.assertTrue(n > 0 && n <= channel.getCapacity());
+
+	    for (int i=0; i<n; i++)
+		Lib.assertTrue(words[i] == spoken[received++]);
+	}
+
+	Lib.assertTrue(channel.tryListen() == null);
+
+	System.out.println("Channel: test passed");
+    }
+
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 notEmpty = new Condition2(lock);
+    private Condition2 notFull = new Condition2(lock);
+}
@@ -83,7 +83,7 @@ public class Condition {
 	waitQueue.add(waiter);
 
 	conditionLock.release();
-	waiter.P();
+	waiter.P(Scheduler.blockedOnCondition);
 	conditionLock.acquire();	
     }
 
@@ -44,7 +44,7 @@ public class Condition2 {
 		queueSize += 1;
 
 		//put thread to sleep
-		KThread.sleep();
+		KThread.sleep(Scheduler.blockedOnCondition);
 
 		conditionLock.acquire();
 
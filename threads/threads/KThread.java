@@ -37,6 +37,20 @@ public class KThread {
 	Lib.assertTrue(currentThread != null);
 	return currentThread;
     }
+
+    /**
+     * Get the thread that most recently ran on the specified processor. For
+     * the processor that <tt>Machine.processor()</tt> returns, this is the
+     * current thread.
+     *
+     * @param	processor	the number of the processor.
+     * @return	the last thread to run on the processor, or <tt>null</tt> if
+     *		none has.
+     */
+    public static KThread currentThread(int processor) {
+	Lib.assertTrue(processor >= 0 && processor < processorThreads.length);
+	return processorThreads[processor];
+    }
     
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
@@ -47,9 +61,11 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);	    
 
+	    processorThreads = new KThread[Machine.numProcessors()];
+
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
@@ -104,6 +120,52 @@ public class KThread {
 	return name;
     }
 
+    /**
+     * Set the processor this thread runs on. When this thread is switched
+     * to, that processor becomes the one returned by
+     * <tt>Machine.processor()</tt>, so any user code this thread runs uses
+     * that processor's registers and TLB.
+     *
+     * @param	processor	the number of the processor, from 0 to
+     *				<tt>Machine.numProcessors()-1</tt>.
+     * @return	this thread.
+     */
+    public KThread setProcessor(int processor) {
+	Lib.assertTrue(processor >= 0 && processor < Machine.numProcessors());
+	Lib.assertTrue(!bound || processor == this.processor);
+
+	this.processor = processor;
+	return this;
+    }
+
+    /**
+     * Get the processor this thread runs on.
+     *
+     * @return	the number of the processor set by <tt>setProcessor()</tt>.
+     */
+    public int getProcessor() {
+	return processor;
+    }
+
+    /**
+     * Keep this thread on the processor it runs on now. A thread that runs
+     * user code calls this first, since from then on its user state is tied
+     * to that processor.
+     */
+    protected void bindProcessor() {
+	bound = true;
+    }
+
+    /**
+     * Test whether this thread may be moved to another processor by
+     * <tt>setProcessor()</tt>.
+     *
+     * @return	<tt>true</tt> unless <tt>bindProcessor()</tt> has been called.
+     */
+    public boolean canChangeProcessor() {
+	return !bound;
+    }
+
     /**
      * Get the full name of this thread. This includes its name along with its
      * numerical ID. This name is used for debugging purposes only.
@@ -263,13 +325,32 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
+	sleep(Scheduler.blockedOther);
+    }
+
+    /**
+     * Relinquish the CPU, like <tt>sleep()</tt>, giving the reason the
+     * current thread is blocked so that the scheduler can account for the
+     * time it spends blocked.
+     *
+     * @param	cause	why the current thread is blocked; one of the
+     *			<tt>blockedOn</tt> constants of <tt>Scheduler</tt>.
+     */
+    public static void sleep(int cause) {
 	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
+	if (currentThread.status != statusFinished) {
 	    currentThread.status = statusBlocked;
 
+	    ThreadedKernel.scheduler.blockingCurrentThread(cause);
+	    ThreadedKernel.scheduler.chargeThread(currentThread, cause);
+	}
+	else {
+	    ThreadedKernel.scheduler.chargeThread(currentThread, -1);
+	}
+
 	runNextThread();
     }
 
@@ -284,12 +365,28 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
+	    ThreadedKernel.scheduler.chargeThread(this, Scheduler.timeReady);
 	    readyQueue.waitForAccess(this);
+
+	    // a tickless alarm only preempts while another thread is waiting
+	    if (++numReady == 1 && ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.threadReady();
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Return the number of threads on the ready queue, not counting the idle
+     * thread.
+     *
+     * @return	the number of ready threads.
+     */
+    static int numReadyThreads() {
+	return numReady;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -313,7 +410,7 @@ public class KThread {
         }
 
         joinQueue.waitForAccess(currentThread);
-        currentThread.sleep();
+        sleep(Scheduler.blockedOnJoin);
 
 
         Machine.interrupt().enable();
@@ -333,7 +430,7 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() { while (true) idle(); }
 	});
 	idleThread.setName("idle");
 
@@ -342,18 +439,54 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Relinquish the CPU from the idle thread. Same as <tt>yield()</tt>,
+     * except that if no other thread is ready, simulated time first skips to
+     * just before the next pending interrupt, or the idle thread waits for a
+     * processor running a slice of user code to finish it (see
+     * <tt>Interrupt.idle()</tt>), since no thread can become ready before
+     * then. The interrupt itself is delivered as usual when interrupts are
+     * restored, while the idle thread is still running.
+     */
+    private static void idle() {
+	Lib.assertTrue(currentThread == idleThread);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (numReady == 0)
+	    Machine.interrupt().idle();
+
+	Machine.interrupt().restore(intStatus);
+
+	yield();
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
-	KThread nextThread = readyQueue.nextThread();
+	ThreadedKernel.scheduler.stoppingCurrentThread();
+
+	KThread nextThread = nextReadyThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
 
 	nextThread.run();
     }
 
+    /**
+     * Remove and return the next thread on the ready queue, or return
+     * <tt>null</tt> if it is empty.
+     */
+    private static KThread nextReadyThread() {
+	KThread nextThread = readyQueue.nextThread();
+	if (nextThread != null)
+	    numReady--;
+
+	return nextThread;
+    }
+
     /**
      * Dispatch the CPU to this thread. Save the state of the current thread,
      * switch to the new thread by calling <tt>TCB.contextSwitch()</tt>, and
@@ -403,6 +536,12 @@ public class KThread {
 	Lib.assertTrue(tcb == TCB.currentTCB());
 
 	Machine.autoGrader().runningThread(this);
+	ThreadedKernel.scheduler.runningThread(this);
+	if (this != idleThread)
+	    ThreadedKernel.scheduler.chargeThread(this, Scheduler.timeRunning);
+
+	Machine.setCurrentProcessor(processor);
+	processorThreads[processor] = this;
 	
 	status = statusRunning;
 
@@ -448,10 +587,83 @@ public class KThread {
     public static void selfTest() {
 	Lib.debug(dbgThread, "Enter KThread.selfTest");
 	
-	new KThread(new PingTest(1)).setName("forked thread").fork();
+	KThread forked = new KThread(new PingTest(1)).setName("forked thread");
+	forked.fork();
 	new PingTest(0).run();
+	forked.join();
+
+	testIdleWithTimerPending();
+	testThreadReuse();
+    }
+
+    /**
+     * Tests that the idle thread lets time reach a pending timer interrupt
+     * when every other thread is blocked, so that a thread sleeping in
+     * <tt>Alarm.waitUntil()</tt> wakes.
+     */
+    private static void testIdleWithTimerPending() {
+	String testName = "test idle with a timer interrupt pending: ";
+	System.out.println(testName + "started test");
+
+	long wakeTime = Machine.timer().getTime() + 2000;
+	ThreadedKernel.alarm.waitUntil(2000);
+
+	Lib.assertTrue(Machine.timer().getTime() >= wakeTime,
+		       testName + "test failed, woke before the wake time");
+	System.out.println(testName + "test passed");
     }
     
+    /**
+     * Tests that threads forked one after another each run their own target
+     * once, and that when <tt>TCB.poolSize</tt> is set, the Java threads of
+     * finished threads are used again rather than a new one for each fork.
+     */
+    private static void testThreadReuse() {
+	String testName = "test threads reuse finished Java threads: ";
+	System.out.println(testName + "started test");
+
+	final int numThreads = 20;
+	final int[] ran = new int[numThreads];
+	final Thread[] javaThreads = new Thread[numThreads];
+
+	for (int i=0; i<numThreads; i++) {
+	    final int which = i;
+	    KThread thread = new KThread(new Runnable() {
+		    public void run() {
+			ran[which]++;
+			javaThreads[which] = Thread.currentThread();
+		    }
+		}).setName("reuse " + i);
+	    thread.fork();
+	    thread.join();
+	}
+
+	int numJavaThreads = 0;
+	for (int i=0; i<numThreads; i++) {
+	    Lib.assertTrue(ran[i] == 1,
+			   testName + "test failed, thread " + i + " ran " +
+			   ran[i] + " times");
+
+	    int first = 0;
+	    while (javaThreads[first] != javaThreads[i])
+		first++;
+	    if (first == i)
+		numJavaThreads++;
+	}
+
+	// a Java thread joins the pool while the next thread is forked, so
+	// not every fork finds one, but most do
+	if (Config.getInteger("TCB.poolSize", 0) > 0)
+	    Lib.assertTrue(numJavaThreads < numThreads,
+			   testName + "test failed, no Java thread was reused");
+	else
+	    Lib.assertTrue(numJavaThreads == numThreads,
+			   testName + "test failed, a Java thread was reused");
+
+	System.out.println(testName + "test passed, " + numThreads +
+			   " threads ran on " + numJavaThreads + " Java threads");
+    }
+
     /**
      * Tests that the join method does not allow thread to be joined if it is not running.
      */
@@ -481,15 +693,19 @@ public class KThread {
     		
     		System.out.println(testName + " started");
     	
+    		final boolean[] started = new boolean[1];
     		KThread thread = new KThread(new Runnable() {
 				
 				@Override
 				public void run() {
 					
 					System.out.println("test thread is running");
+					started[0] = true;
 					Lib.assertTrue(currentThread.joinQueue == null, "joinQueue is not null, it should be no thread joined this one");
 					System.out.println("test thread yielding");
-					currentThread.yield();
+					// any scheduler lets the joining thread in eventually
+					for (int i=0; i<100 && currentThread.joinQueue == null; i++)
+						currentThread.yield();
 					
 					System.out.println("test thread is running again");
 					Lib.assertTrue(currentThread.joinQueue != null, "join is null eventhough a thread joined this thread");
@@ -499,7 +715,8 @@ public class KThread {
 			});
     		
     		thread.fork();
-    		currentThread.yield();
+    		for (int i=0; i<100 && !started[0]; i++)
+    			currentThread.yield();
     		thread.join();
     		System.out .println(testName + " passed, was able to join running thread and get control after thread executed");
     	
@@ -588,7 +805,8 @@ public class KThread {
 				
     			thread = new KThread(runnable);
     			thread.fork();
-    			currentThread.yield();
+    			for (int i=0; i<100 && thread.status != statusFinished; i++)
+    			    currentThread.yield();
     			break;
     		case statusNew:
     			runnable = new Runnable() {
@@ -667,6 +885,16 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * Ticks this thread has spent in each kind of time the scheduler
+     * accounts for, the kind it is spending now, or -1, and since when.
+     *
+     * @see	nachos.threads.Scheduler#getThreadTime
+     */
+    long[] schedulingTimes = new long[Scheduler.numTimeKinds];
+    int timeKind = -1;
+    long timeSince = 0;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -682,6 +910,8 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    private int processor = 0;
+    private boolean bound = false;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -692,8 +922,12 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** Number of threads on <tt>readyQueue</tt>. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /** The thread that most recently ran on each processor. */
+    private static KThread[] processorThreads = null;
     private ThreadQueue joinQueue = null;
 }
\ No newline at end of file
@@ -1,9 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Random;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -69,8 +66,10 @@ public class LotteryScheduler extends PriorityScheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
+		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(intStatus);
 			return false;
+		}
 
 		setPriority(thread, priority + 1);
 
@@ -107,8 +106,10 @@ public class LotteryScheduler extends PriorityScheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
+		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(intStatus);
 			return false;
+		}
 
 		setPriority(thread, priority - 1);
 
@@ -120,9 +121,92 @@ public class LotteryScheduler extends PriorityScheduler {
 	public int getEffectivePriority(KThread thread) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		return getLotteryThreadState(thread).effectiveTickets;
+		return getLotteryThreadState(thread).getEffectiveTickets();
 	}
 	
+	/**
+	 * Test that the Fenwick tree of a queue stays equal to the tickets of its
+	 * waiters, and that the holder gets their sum, as the queue grows, as
+	 * tickets change further down a chain of donations, and as waiters win.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+
+		LotteryQueue queue = (LotteryQueue) scheduler.newThreadQueue(true);
+		LotteryQueue inner = (LotteryQueue) scheduler.newThreadQueue(true);
+
+		KThread holder = new KThread().setName("holder");
+		KThread donor = new KThread().setName("donor");
+		KThread[] waiters = new KThread[initialCapacity + 4];
+		for (int i = 0; i < waiters.length; i++)
+			waiters[i] = new KThread().setName("waiter " + i);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		queue.acquire(holder);
+
+		// more waiters than the initial slots, so the tree is rebuilt
+		for (int i = 0; i < waiters.length; i++) {
+			scheduler.setPriority(waiters[i], i + 1);
+			queue.waitForAccess(waiters[i]);
+			checkTree(queue);
+		}
+		Lib.assertTrue(queue.size == waiters.length);
+
+		// tickets donated to a waiter reach the holder through its slot
+		inner.acquire(waiters[3]);
+		scheduler.setPriority(donor, 100);
+		inner.waitForAccess(donor);
+		Lib.assertTrue(scheduler.getEffectivePriority(waiters[3]) == 104);
+		checkTree(queue);
+
+		scheduler.setPriority(donor, 10);
+		Lib.assertTrue(scheduler.getEffectivePriority(waiters[3]) == 14);
+		checkTree(queue);
+
+		Lib.assertTrue(inner.nextThread() == donor);
+		Lib.assertTrue(scheduler.getEffectivePriority(waiters[3]) == 4);
+		checkTree(queue);
+
+		// each winner leaves a slot that the last waiter moves into
+		for (int i = 0; i < waiters.length; i++) {
+			KThread winner = queue.nextThread();
+			Lib.assertTrue(winner != null && queue.resourceHolder.thread == winner);
+			checkTree(queue);
+		}
+		Lib.assertTrue(queue.nextThread() == null);
+		Lib.assertTrue(queue.sumTickets == 0);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityMinimum);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("LotteryScheduler: test ticket sums passed");
+	}
+
+	// check each node of the tree, and the holder's effective tickets
+	private static void checkTree(LotteryQueue queue) {
+		long sum = 0;
+		for (int i = 1; i < queue.tickets.length; i++) {
+			long expected = 0;
+			for (int j = i - (i & -i) + 1; j <= i; j++) {
+				if (j <= queue.size)
+					expected += queue.waitQueue[j].effectiveTickets;
+				else
+					Lib.assertTrue(queue.waitQueue[j] == null);
+			}
+			Lib.assertTrue(queue.tickets[i] == expected);
+
+			if (i <= queue.size) {
+				Lib.assertTrue(queue.waitQueue[i].slot == i);
+				sum += queue.waitQueue[i].effectiveTickets;
+			}
+		}
+		Lib.assertTrue(queue.sumTickets == sum);
+
+		LotteryThreadState holder = queue.resourceHolder;
+		Lib.assertTrue(holder.effectiveTickets == holder.numTickets + sum);
+	}
+
 	/**
 	 * The minimum priority that a thread can have. Do not change this value.
 	 */
@@ -134,12 +218,25 @@ public class LotteryScheduler extends PriorityScheduler {
 	// priorityMaximum will be the max value integer
 	public static final int priorityMaximum = Integer.MAX_VALUE;
 
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiters.
+	 *
+	 * <p>
+	 * Waiters occupy consecutive slots, and a Fenwick tree over the slots keeps
+	 * prefix sums of their effective tickets. Drawing the winner, and changing
+	 * the tickets of one waiter, each take time logarithmic in the number of
+	 * waiters. Draws come from the random number generator in <tt>Lib</tt>, so
+	 * a run with the same seed holds the same lotteries.
+	 */
 	protected class LotteryQueue extends ThreadQueue {
 
 		boolean transferPriority;
 		private LotteryThreadState resourceHolder;
-		private int sumTickets;
-		private HashSet<LotteryThreadState> waitQueue = new HashSet<LotteryThreadState>();
+		private long sumTickets;
+		// waiters by slot, and the fenwick tree of their tickets, from index 1
+		private LotteryThreadState[] waitQueue = new LotteryThreadState[initialCapacity + 1];
+		private long[] tickets = new long[initialCapacity + 1];
+		private int size = 0;
 
 		LotteryQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
@@ -166,44 +263,32 @@ public class LotteryScheduler extends PriorityScheduler {
 			// typecast thread
 			LotteryThreadState lts = getLotteryThreadState(thread);
 
-			// acquire thread
+			// clean previous resource holder, then acquire thread
+			if (resourceHolder != null)
+				resourceHolder.release(this);
 			lts.acquire(this);
 		}
 
-		public void updateEP() {
-			int updateTickets = 0;
-
-			Iterator<LotteryThreadState> nextLottery = waitQueue.iterator();
-			while (nextLottery.hasNext()) {
-				LotteryThreadState ts = nextLottery.next();
-				updateTickets += ts.effectiveTickets;
-				sumTickets = updateTickets;
-			}
-		}
-
-		// remove waiting thread
-		public void noWait(LotteryThreadState lotteryThread) {
-			// if thread is removed from wait queue
-			if (waitQueue.remove(lotteryThread)) {
-				// update the new effective & resource holder
-				updateEP();
-				updateResourceHolder();
-			}
-		}
-
 		public KThread nextThread() {
 
 			// Disable interrupt!
 			Lib.assertTrue(Machine.interrupt().disabled());
 
 			// check for non-empty wait queue
-			if (!waitQueue.isEmpty()) {
-				// return the thread pickNextThread returns
-				return pickNextThread();
-			} else {
-				// none found? return null
+			KThread lotteryThread = pickNextThread();
+
+			// none found? release the queue and return null
+			if (lotteryThread == null) {
+				if (resourceHolder != null)
+					resourceHolder.release(this);
 				return null;
 			}
+
+			// winner stops waiting and acquires the queue
+			remove(getLotteryThreadState(lotteryThread));
+			acquire(lotteryThread);
+
+			return lotteryThread;
 		}
 
 		public KThread pickNextThread() {
@@ -214,50 +299,94 @@ public class LotteryScheduler extends PriorityScheduler {
 			 * ticket) works.
 			 */
 
-			// lottery thread to be returned
-			KThread lotteryThread = null;
-
-			// random number generator
-			Random randomGen = new Random();
-
-			// generate a random ticket
-			int randomTicket = randomGen.nextInt(sumTickets) + 1;
-
-			// iterate through lottery thread queue
-			Iterator<LotteryThreadState> nextLottery = waitQueue.iterator();
-			// while thread exists
-			while (nextLottery.hasNext()) {
-				// keep on updating the random ticket
-				LotteryThreadState ts = nextLottery.next();
-				int lotteryTicket = ts.effectiveTickets;
-				randomTicket = randomTicket - lotteryTicket;
-
-				// once it reaches negative
-				if (randomTicket <= 0) {
-					// acquire the last known lottery thread
-					lotteryThread = ts.thread;
-					ts.acquire(this);
-					// terminate loop
-					break;
+			if (size == 0)
+				return null;
+
+			// generate a random ticket in [0, sumTickets)
+			long randomTicket;
+			if (sumTickets <= Integer.MAX_VALUE)
+				randomTicket = Lib.random((int) sumTickets);
+			else
+				randomTicket = Math.min((long) (Lib.random() * sumTickets), sumTickets - 1);
+
+			// descend the tree to the slot holding the winning ticket
+			int slot = 0;
+			for (int step = Integer.highestOneBit(waitQueue.length - 1); step > 0; step >>= 1) {
+				if (slot + step < waitQueue.length && tickets[slot + step] <= randomTicket) {
+					slot += step;
+					randomTicket -= tickets[slot];
 				}
 			}
-			// return final lottery thread
-			return lotteryThread;
+
+			return waitQueue[slot + 1].thread;
 		}
 
 		public void print() {
 			// Skip
 		}
 
-		// update resource holder
-		public void updateResourceHolder() {
-			// if not null, update it
-			if (resourceHolder != null) {
-				resourceHolder.updateEP2();
+		// add a waiter in the next free slot
+		void insert(LotteryThreadState lts) {
+			if (size + 1 == waitQueue.length)
+				grow();
+
+			size++;
+			waitQueue[size] = lts;
+			lts.slot = size;
+			lts.waitingOn = this;
+			adjust(size, lts.effectiveTickets);
+		}
+
+		// remove a waiter, moving the last waiter into its slot
+		void remove(LotteryThreadState lts) {
+			Lib.assertTrue(lts.waitingOn == this);
+
+			LotteryThreadState last = waitQueue[size];
+			adjust(size, -last.effectiveTickets);
+			if (last != lts) {
+				adjust(lts.slot, last.effectiveTickets - lts.effectiveTickets);
+				waitQueue[lts.slot] = last;
+				last.slot = lts.slot;
 			}
+			waitQueue[size] = null;
+			size--;
+
+			lts.waitingOn = null;
+			lts.slot = 0;
+		}
+
+		// add delta tickets to a slot, passing the change on to the holder
+		void adjust(int slot, long delta) {
+			for (int i = slot; i < tickets.length; i += (i & -i))
+				tickets[i] += delta;
+			sumTickets += delta;
+
+			if (transferPriority && resourceHolder != null)
+				resourceHolder.addTickets(delta);
+		}
+
+		// double the slots and rebuild the tree in linear time
+		private void grow() {
+			int capacity = 2 * (waitQueue.length - 1);
+			LotteryThreadState[] newWaitQueue = new LotteryThreadState[capacity + 1];
+			long[] newTickets = new long[capacity + 1];
+
+			for (int i = 1; i <= size; i++) {
+				newWaitQueue[i] = waitQueue[i];
+				newTickets[i] += waitQueue[i].effectiveTickets;
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					newTickets[parent] += newTickets[i];
+			}
+
+			waitQueue = newWaitQueue;
+			tickets = newTickets;
 		}
 	}
 
+	// initial number of waiter slots in a lottery queue; a power of two
+	private static final int initialCapacity = 16;
+
 	/**
 	 * The scheduling state of a thread. This should include the thread's priority,
 	 * its effective priority, any objects it owns, and the queue it's waiting for,
@@ -272,139 +401,64 @@ public class LotteryScheduler extends PriorityScheduler {
 		KThread thread;
 		//set number of tickets & effective tickets as min temporarily
 		private int numTickets = priorityMinimum;
-		private int effectiveTickets = priorityMinimum;
-		//HashSet of type LotteryQueue for resource and wait queue
-		private HashSet<LotteryQueue> resourceQueue = new HashSet<LotteryQueue>();
-		private HashSet<LotteryQueue> waitQueue = new HashSet<LotteryQueue>();
+		//own tickets plus those of waiters on held transfer queues
+		private long effectiveTickets = priorityMinimum;
+		//queue this thread is waiting on, and its slot there
+		private LotteryQueue waitingOn = null;
+		private int slot = 0;
 
 		LotteryThreadState(KThread thread) {
 			this.thread = thread;
 		}
 
+		//effective tickets as an int, saturating
+		int getEffectiveTickets() {
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+		}
+
 		//set current priority (tickets in this case)
 		public void setPriority(int priority) {
+			long delta = (long) priority - numTickets;
 			this.numTickets = priority;
-			updateEP2();
-		}
-		
-		//release lottery queue
-		public void release(LotteryQueue lq) {
-			//if resource queue hasn't removed lottery queue and it's current holder
-			if (!resourceQueue.remove(lq) && lq.resourceHolder == this) {
-				//update them
-				updateHolder(lq);
-				updateResourceQueue();
-				updateWaitQueue();
-			}
+			addTickets(delta);
 		}
 
-		public void updateResourceQueue() {
-			//ticket to be returned
-			int Tickets = numTickets;
-
-			// iterate through the resource queue
-			Iterator<LotteryQueue> nextLottery = resourceQueue.iterator();
-			// while queue exists
-			while (nextLottery.hasNext()) {
-				LotteryQueue lotteryQueue = nextLottery.next();
-
-				// check for transfer priority
-				if (lotteryQueue.transferPriority) {
+		//release lottery queue, taking back its donation
+		public void release(LotteryQueue lq) {
+			Lib.assertTrue(lq.resourceHolder == this);
 
-					// loop through threadstate of wait queue
-					for (LotteryThreadState lotteryThread : lotteryQueue.waitQueue)
-						// sums up lottery thread state tickets
-						Tickets += lotteryThread.effectiveTickets;
-				}
-				// return sum tickets and update effective tickets
-				effectiveTickets = Tickets;
-			}
+			lq.resourceHolder = null;
+			if (lq.transferPriority)
+				addTickets(-lq.sumTickets);
 		}
 
-		public void updateWaitQueue() {
-
-			// iterate through the Lottery wait Queue
-			Iterator<LotteryQueue> nextLottery = waitQueue.iterator();
-			// while queue exists
-			while (nextLottery.hasNext()) {
-				LotteryQueue lotteryQueue = nextLottery.next();
-				lotteryQueue.updateEP();
-				if (lotteryQueue.transferPriority && lotteryQueue.resourceHolder != null)
-					lotteryQueue.resourceHolder.updateEP2();
-			}
-		}
-		
-		//update resource holder
-		public void updateHolder(LotteryQueue lq) {
-			if (!resourceQueue.remove(lq)) {
-				lq.resourceHolder = null;
-			}
-		}
-		
-		//update resource and wait queue
-		public void updateQueue(LotteryQueue lq) {
-			resourceQueue.add(lq);
-			waitQueue.remove(lq);
-		}
+		//change effective tickets; the queue waited on passes it up the chain
+		void addTickets(long delta) {
+			if (delta == 0)
+				return;
 
-		//update effective priority for lottery queue
-		private void updateEP2() {
-			updateResourceQueue();
-			updateWaitQueue();
+			effectiveTickets += delta;
+			if (waitingOn != null)
+				waitingOn.adjust(slot, delta);
 		}
 
-		//if exists, clean previous resource queue holder
-		public void wipePrevious(LotteryQueue lq) {
-			if (lq.resourceHolder != null) {
-				lq.resourceHolder.release(lq);
-			}
-		}
+		public void acquire(LotteryQueue lq) {
+			Lib.assertTrue(lq.resourceHolder == null);
 
-		//no longer waiting; update
-		public void removeWait(LotteryQueue lq) {
-			lq.noWait(this);
 			lq.resourceHolder = this;
-			updateQueue(lq);
-			updateEP2();
+			if (lq.transferPriority)
+				addTickets(lq.sumTickets);
 		}
 
-		public void acquire(LotteryQueue lq) {
-			if (lq.resourceHolder != this) {
-				wipePrevious(lq);
-			}
-			removeWait(lq);
-		}
+		public void waitForAccess(LotteryQueue lq) {
+			Lib.assertTrue(waitingOn == null);
 
-		//priority donation
-		public void donation(LotteryQueue lq) {
-
-			boolean check = lq.waitQueue.contains(this);
-			if (!check) {
-				waitQueue.add(lq);
-				lq.waitQueue.add(this);
-
-				//if priority donation
-				if (lq.transferPriority && lq.resourceHolder != null) {
-					//update resource holder with lottery thread state
-					lq.resourceHolder.updateEP2();
-				} else {
-					//else update lottery queue
-					lq.updateEP();
-				}
-			}
-		}
+			// if current resource owner, give up the queue first
+			if (lq.resourceHolder == this)
+				release(lq);
 
-		public void waitForAccess(LotteryQueue lq) {
-			// if current resource owner & queue hasn't been removed
-			if(lq.resourceHolder == this) {
-				//update resourceHolder
-				updateHolder(lq);
-				// update both queue
-				updateResourceQueue();
-				updateWaitQueue();
-			}
-			//priority donation
-			donation(lq);
+			//priority donation happens as the tickets enter the tree
+			lq.insert(this);
 		}
 	}
-}
\ No newline at end of file
+}
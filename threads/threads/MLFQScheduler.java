@@ -0,0 +1,448 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multilevel feedback queue scheduler. Each thread is at one of several
+ * levels, level 0 being the most favored. The next thread to receive access
+ * is the thread at the lowest level that has been waiting longest.
+ *
+ * <p>
+ * A thread's level follows how it uses the CPU. A thread that runs for a full
+ * quantum at its level, counted across however many slices it takes, drops a
+ * level; the quantum doubles at each level down. A thread that blocks waiting
+ * for another thread, in a semaphore, lock, condition variable, join or
+ * alarm, rises a level, so threads that mostly wait for input are run soon
+ * after they wake. So that CPU-bound threads cannot starve, every thread is moved
+ * back to level 0 periodically.
+ *
+ * <p>
+ * The number of levels and the time between boosts, in ticks, are read from
+ * <tt>MLFQScheduler.levels</tt> and <tt>MLFQScheduler.boostInterval</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multilevel feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	Lib.assertTrue(numLevels >= 1 && numLevels <= 32);
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  100 * Stats.TimerTicks);
+	Lib.assertTrue(boostInterval > 0);
+
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new multilevel thread queue.
+     *
+     * @param	transferPriority	ignored. Levels are not donated.
+     * @return	a new multilevel thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQueue();
+    }
+
+    /**
+     * Return the level of the specified thread. Higher priorities are more
+     * favored, so this is the number of levels below the thread's.
+     *
+     * @param	thread	the thread to get the priority of.
+     * @return	the thread's priority.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels - 1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the current thread for the time it has run, and move it down a
+     * level if it has used up its quantum. Also starts a boost if one is due.
+     */
+    public void stoppingCurrentThread() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	charge(getThreadState(KThread.currentThread()),
+	       Machine.timer().getTime());
+    }
+
+    /**
+     * Charge a thread that stops running at the specified time, and start a
+     * boost if one is due by then.
+     */
+    private void charge(ThreadState state, long now) {
+	if (now >= nextBoost) {
+	    boostEpoch++;
+	    nextBoost = now + boostInterval;
+	}
+
+	if (state.runStart == -1)
+	    return;
+
+	state.used += now - state.runStart;
+	state.runStart = -1;
+
+	int level = state.getLevel();
+	if (state.used >= quantum(level) && level < numLevels - 1)
+	    state.setLevel(level + 1);
+    }
+
+    /**
+     * Start timing the run of the specified thread.
+     */
+    public void runningThread(KThread thread) {
+	getThreadState(thread).runStart = Machine.timer().getTime();
+    }
+
+    /**
+     * Move the current thread up a level, since it is about to block.
+     */
+    public void blockingCurrentThread(int cause) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(KThread.currentThread());
+
+	int level = state.getLevel();
+	if (level > 0)
+	    state.setLevel(level - 1);
+	else
+	    state.used = 0;
+    }
+
+    /**
+     * Test that a thread drops a level once its runs add up to the quantum of
+     * its level, that lower levels are chosen first, and that a boost brings
+     * every thread back to level 0, waiting or not, in the order in which the
+     * waiting threads would have been chosen.
+     */
+    public static void selfTest() {
+	MLFQScheduler scheduler = new MLFQScheduler();
+	if (scheduler.numLevels < 3) {
+	    System.out.println("MLFQScheduler: needs more than two levels, " +
+			       "test skipped");
+	    return;
+	}
+
+	int bottom = scheduler.numLevels - 1;
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	KThread cpuBound = new KThread().setName("cpu bound");
+	KThread other = new KThread().setName("other");
+	KThread fresh = new KThread().setName("fresh");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = scheduler.getThreadState(cpuBound);
+
+	// no boost until the test starts one
+	scheduler.nextBoost = Long.MAX_VALUE;
+
+	// two runs of half a quantum each use up level 0
+	long now = 0;
+	for (int i=0; i<2; i++) {
+	    Lib.assertTrue(state.getLevel() == 0);
+	    state.runStart = now;
+	    now += scheduler.quantum(0) / 2;
+	    scheduler.charge(state, now);
+	}
+	Lib.assertTrue(state.getLevel() == 1);
+
+	// each level down takes a quantum twice as long, down to the bottom
+	for (int level=1; level<=bottom; level++) {
+	    state.runStart = now;
+	    now += scheduler.quantum(level) - 1;
+	    scheduler.charge(state, now);
+	    Lib.assertTrue(state.getLevel() == level);
+
+	    state.runStart = now;
+	    now++;
+	    scheduler.charge(state, now);
+	    Lib.assertTrue(state.getLevel() == Math.min(level+1, bottom));
+	}
+
+	// the thread at level 0 goes first, though it started waiting last
+	ThreadState otherState = scheduler.getThreadState(other);
+	otherState.setLevel(bottom - 1);
+
+	queue.waitForAccess(cpuBound);
+	queue.waitForAccess(other);
+	queue.waitForAccess(fresh);
+	Lib.assertTrue(queue.nextThread() == fresh);
+
+	// a boost brings everyone back to level 0
+	scheduler.nextBoost = now;
+	scheduler.charge(scheduler.getThreadState(fresh), now);
+	Lib.assertTrue(state.getLevel() == 0 && state.used == 0);
+	Lib.assertTrue(otherState.getLevel() == 0);
+
+	Lib.assertTrue(queue.nextThread() == other);
+	Lib.assertTrue(queue.nextThread() == cpuBound);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("MLFQScheduler: test demotion and boost passed");
+    }
+
+    /**
+     * Return the number of ticks a thread may run at the specified level
+     * before it drops to the next.
+     */
+    private long quantum(int level) {
+	return (long) Stats.TimerTicks << level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level, and a bitmap of
+     * the levels that are occupied.
+     */
+    protected class MLFQueue extends ThreadQueue {
+	MLFQueue() {
+	    heads = new ThreadState[numLevels];
+	    tails = new ThreadState[numLevels];
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    checkBoost();
+	    state.checkBoost();
+	    append(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    KThread thread = pickNextThread();
+	    if (thread != null)
+		remove(getThreadState(thread));
+
+	    return thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected KThread pickNextThread() {
+	    checkBoost();
+
+	    if (occupied == 0)
+		return null;
+
+	    return heads[Integer.numberOfTrailingZeros(occupied)].thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    checkBoost();
+
+	    for (int level = 0; level < numLevels; level++) {
+		for (ThreadState s = heads[level]; s != null; s = s.next)
+		    System.out.print(s.thread + " ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a thread to the tail of the list for its level.
+	 */
+	void append(ThreadState state) {
+	    int level = state.level;
+
+	    state.waitingOn = this;
+	    state.prev = tails[level];
+	    state.next = null;
+
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+	    tails[level] = state;
+
+	    occupied |= (1 << level);
+	}
+
+	/**
+	 * Unlink a thread from the list for its level.
+	 */
+	void remove(ThreadState state) {
+	    Lib.assertTrue(state.waitingOn == this);
+
+	    int level = state.level;
+
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    if (heads[level] == null)
+		occupied &= ~(1 << level);
+
+	    state.waitingOn = null;
+	    state.prev = state.next = null;
+	}
+
+	/**
+	 * If a boost has started since this queue last looked, move every
+	 * waiting thread to level 0, keeping the order in which they would
+	 * have been chosen.
+	 */
+	void checkBoost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+
+	    ThreadState head = null, tail = null;
+	    for (int level = 0; level < numLevels; level++) {
+		if (heads[level] == null)
+		    continue;
+
+		if (head == null)
+		    head = heads[level];
+		else {
+		    tail.next = heads[level];
+		    heads[level].prev = tail;
+		}
+		tail = tails[level];
+
+		heads[level] = tails[level] = null;
+	    }
+
+	    for (ThreadState s = head; s != null; s = s.next)
+		s.checkBoost();
+
+	    heads[0] = head;
+	    tails[0] = tail;
+	    occupied = (head != null) ? 1 : 0;
+	}
+
+	private ThreadState[] heads, tails;
+	private int occupied = 0;
+	private int epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, the time it has run at
+     * that level, and its place in the queue it is waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (waitingOn != null)
+		waitingOn.checkBoost();
+	    checkBoost();
+
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to the specified level, with a fresh
+	 * quantum, and to the tail of that level in the queue it is waiting
+	 * on.
+	 *
+	 * @param	level	the new level.
+	 */
+	public void setLevel(int level) {
+	    MLFQueue queue = waitingOn;
+	    if (queue != null) {
+		queue.checkBoost();
+		queue.remove(this);
+	    }
+
+	    checkBoost();
+	    this.level = level;
+	    used = 0;
+
+	    if (queue != null)
+		queue.append(this);
+	}
+
+	/**
+	 * Move the associated thread to level 0 if a boost has started since
+	 * it last looked. A thread waiting on a queue is boosted by the
+	 * queue.
+	 */
+	void checkBoost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+	    level = 0;
+	    used = 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** The ticks the associated thread has run at its level. */
+	protected long used = 0;
+	/** The time the associated thread started running, or -1. */
+	long runStart = -1;
+	private int epoch = boostEpoch;
+
+	MLFQueue waitingOn = null;
+	ThreadState prev = null, next = null;
+    }
+
+    private int numLevels;
+    private long boostInterval;
+    /** The time at which to start the next boost. */
+    private long nextBoost;
+    /** The number of boosts started so far. */
+    private int boostEpoch = 0;
+}
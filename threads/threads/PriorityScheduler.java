@@ -96,6 +96,75 @@ public class PriorityScheduler extends Scheduler {
 		return true;
 	}
 
+	/**
+	 * Test that donations pass along a chain of holders, follow changes to the
+	 * donor's priority in both directions, and are taken back when a queue
+	 * changes hands.
+	 */
+	public static void selfTest() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+
+		ThreadQueue first = scheduler.newThreadQueue(true);
+		ThreadQueue second = scheduler.newThreadQueue(true);
+		ThreadQueue third = scheduler.newThreadQueue(true);
+
+		KThread low = new KThread().setName("low");
+		KThread middle = new KThread().setName("middle");
+		KThread high = new KThread().setName("high");
+		KThread other = new KThread().setName("other");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// low holds the first queue, which middle waits on while holding the
+		// second, which high waits on while holding the third
+		first.acquire(low);
+		second.acquire(middle);
+		third.acquire(high);
+		first.waitForAccess(middle);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == priorityDefault);
+
+		scheduler.setPriority(high, 5);
+		second.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(middle) == 5);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 5);
+
+		// a change to the end of the chain reaches its head, up and down
+		third.waitForAccess(other);
+		scheduler.setPriority(other, priorityMaximum);
+		Lib.assertTrue(scheduler.getEffectivePriority(high) == priorityMaximum);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == priorityMaximum);
+
+		scheduler.setPriority(other, 2);
+		Lib.assertTrue(scheduler.getEffectivePriority(high) == 5);
+		Lib.assertTrue(scheduler.getEffectivePriority(middle) == 5);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 5);
+
+		// a queue that does not transfer priority donates nothing
+		ThreadQueue plain = scheduler.newThreadQueue(false);
+		plain.acquire(low);
+		KThread waiter = new KThread().setName("waiter");
+		scheduler.setPriority(waiter, 6);
+		plain.waitForAccess(waiter);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 5);
+
+		// handing a queue on takes back what it donated
+		Lib.assertTrue(second.nextThread() == high);
+		Lib.assertTrue(scheduler.getEffectivePriority(middle) == priorityDefault);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == priorityDefault);
+
+		Lib.assertTrue(first.nextThread() == middle);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == priorityDefault);
+		Lib.assertTrue(first.nextThread() == null);
+
+		Lib.assertTrue(plain.nextThread() == waiter);
+		Lib.assertTrue(third.nextThread() == other);
+		Lib.assertTrue(scheduler.getEffectivePriority(high) == 5);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("PriorityScheduler: test donation chains passed");
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -125,6 +194,18 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * Waiting threads are kept in one FIFO list per effective priority, with a
+	 * bitmap of the levels that are occupied, so the next thread is found with
+	 * a single find-first-set however many threads are waiting.
+	 *
+	 * <p>
+	 * A queue that transfers priority donates the level of its best waiter to
+	 * its holder, which counts the donations it receives at each level. When
+	 * that level changes, only the holder's counts change, and the change goes
+	 * further up the chain of holders only while it changes someone's
+	 * effective priority.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 
@@ -132,21 +213,9 @@ public class PriorityScheduler extends Scheduler {
 			this.transferPriority = transferPriority;
 		}
 
-		private void cache() {
-
-			// check for priority donation
-			if (this.resourceHolder != null && transferPriority) {
-				resourceHolder.cache();
-			}
-
-			this.priorityCheck = true;
-		}
-
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			ThreadState threads = getThreadState(thread);
-			this.waitingQueue.add(threads);
-			threads.waitForAccess(this);
+			getThreadState(thread).waitForAccess(this);
 		}
 
 		public void acquire(KThread thread) {
@@ -155,38 +224,26 @@ public class PriorityScheduler extends Scheduler {
 			if (this.resourceHolder != null) {
 				this.resourceHolder.release(this);
 			}
-			this.resourceHolder = threads;
 			threads.acquire(this);
 		}
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			// implement me
-
-			// if waitingQueue isn't empty
-			if (!waitingQueue.isEmpty()) {
-				ThreadState nextThread = pickNextThread();
-				// make sure the thread pickNextThread returns isn't null
-				if (nextThread != null) {
-					// if it isn't, acquire that thread
-					acquire(nextThread.thread);
-					// then remove the thread from queue
-					waitingQueue.remove(nextThread);
-				}
-				// return next thread
-				return nextThread.thread;
-			}
+			ThreadState nextThread = pickNextThread();
 
-			// if transfer priority and resource holder exists
-			if (transferPriority && resourceHolder != null) {
-				// remove current resource holder from queue
-				this.resourceHolder.resourceQueue.remove(this);
+			// nobody waiting; the queue is free
+			if (nextThread == null) {
+				if (resourceHolder != null)
+					resourceHolder.release(this);
+				return null;
 			}
 
-			// everything fails, return null
-			return null;
+			remove(nextThread);
+			updateDonation();
+			acquire(nextThread.thread);
 
+			return nextThread.thread;
 		}
 
 		/**
@@ -195,59 +252,131 @@ public class PriorityScheduler extends Scheduler {
 		 *
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
-
 		protected ThreadState pickNextThread() {
-
-			// pick the next thread from last element of queue
-			ThreadState pickThread = waitingQueue.pollLast();
-
-			// determine thread existence
-			if (pickThread != null) {
-				// return the thread picked
-				return (pickThread);
-				// if none found, return null
-			} else {
+			if (occupied == 0)
 				return null;
-			}
 
+			// the highest occupied level, longest waiter first
+			return heads[31 - Integer.numberOfLeadingZeros(occupied)];
 		}
 
-		// getEffectivePriority for PriorityQueue
+		/**
+		 * Return the highest effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if none is waiting.
+		 *
+		 * @return the priority this queue donates to its holder.
+		 */
 		public int getEffectivePriority() {
+			if (occupied == 0)
+				return priorityMinimum;
 
-			if (this.transferPriority && this.priorityCheck) {
-				this.ePriority = priorityMinimum;
-				// iterate through threads (type KThread) in wait queue
-				Iterator<ThreadState> nextT = waitingQueue.iterator();
-				while (nextT.hasNext()) {
-					// compare current effective's with next thread effective priority
-					ePriority = Math.max(ePriority, (nextT.next()).getEffectivePriority());
-				}
-				priorityCheck = false;
-			}
-			// obtain max effective priority
-			return ePriority;
+			return 31 - Integer.numberOfLeadingZeros(occupied);
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+				for (ThreadState t = heads[level]; t != null; t = t.nextWaiter)
+					System.out.print(" " + t.thread + "(" + level + ")");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Bring the donation this queue makes to its holder up to date with
+		 * its best waiter, and update the holder's effective priority if it
+		 * changed.
+		 */
+		void updateDonation() {
+			int level = -1;
+			if (transferPriority && resourceHolder != null && occupied != 0)
+				level = getEffectivePriority();
+
+			if (level == donation)
+				return;
+
+			if (donation != -1)
+				resourceHolder.removeDonation(donation);
+			donation = level;
+			if (donation != -1)
+				resourceHolder.addDonation(donation);
+
+			resourceHolder.updateEffectivePriority();
+		}
+
+		/**
+		 * Add a thread to the tail of the list for its effective priority, or
+		 * further forward if threads that arrived after it are already there.
+		 */
+		void insert(ThreadState ts) {
+			int level = ts.effectivePriority;
+			ts.waitingOn = this;
+
+			// find the last thread that has been waiting longer
+			ThreadState prev = tails[level];
+			while (prev != null && prev.waitOrder > ts.waitOrder)
+				prev = prev.prevWaiter;
+
+			ThreadState next = (prev == null) ? heads[level] : prev.nextWaiter;
+
+			ts.prevWaiter = prev;
+			ts.nextWaiter = next;
+
+			if (prev == null)
+				heads[level] = ts;
+			else
+				prev.nextWaiter = ts;
+
+			if (next == null)
+				tails[level] = ts;
+			else
+				next.prevWaiter = ts;
+
+			occupied |= (1 << level);
+		}
+
+		/**
+		 * Remove a waiting thread from the list for its effective priority.
+		 */
+		void remove(ThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == this);
+
+			int level = ts.effectivePriority;
+
+			if (ts.prevWaiter == null)
+				heads[level] = ts.nextWaiter;
+			else
+				ts.prevWaiter.nextWaiter = ts.nextWaiter;
+
+			if (ts.nextWaiter == null)
+				tails[level] = ts.prevWaiter;
+			else
+				ts.nextWaiter.prevWaiter = ts.prevWaiter;
+
+			if (heads[level] == null)
+				occupied &= ~(1 << level);
+
+			ts.prevWaiter = ts.nextWaiter = null;
+			ts.waitingOn = null;
 		}
 
 		/**
 		 * <tt>true</tt> if this queue should transfer priority from waiting threads to
 		 * the owning thread.
 		 */
-
 		public boolean transferPriority;
-		// ThreadState waiting queue list
-		protected LinkedList<ThreadState> waitingQueue = new LinkedList<ThreadState>();
+		// first and last waiting thread at each effective priority
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+		// bit i is set if some thread is waiting with effective priority i
+		private int occupied = 0;
 		// threadstate resource holder
-		private ThreadState resourceHolder = null;
-		// threadstate effective priority; temp min
-		private int ePriority = priorityMinimum;
-		// variable checks for priority change
-		boolean priorityCheck = false;
+		ThreadState resourceHolder = null;
+		// the level counted in the holder's donations, or -1 if none
+		int donation = -1;
+		// number of threads that have waited; orders waiters of equal priority
+		long numWaits = 0;
 	}
 
 	/**
@@ -263,16 +392,17 @@ public class PriorityScheduler extends Scheduler {
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
-		// resource holding queue
-		protected LinkedList<PriorityQueue> resourceQueue = new LinkedList<PriorityQueue>();
-		// resource waiting Queue
-		protected LinkedList<PriorityQueue> waitingQueue = new LinkedList<PriorityQueue>();
-		// effective priority of the associated thread; temp min
+		// effective priority of the associated thread, always up to date
 		int effectivePriority = priorityMinimum;
-		// wait time for threads comparison
-		protected long waitTime = Machine.timer().getTime();
-		// check for priority changes
-		boolean priorityCheck = false;
+		// number of held queues donating each level, and the levels donated
+		private int[] donations = new int[priorityMaximum + 1];
+		private int donated = 0;
+		// the queue this thread is waiting on, and its neighbours there
+		PriorityQueue waitingOn = null;
+		ThreadState prevWaiter = null;
+		ThreadState nextWaiter = null;
+		// when this thread started waiting on waitingOn
+		long waitOrder;
 
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
@@ -281,7 +411,6 @@ public class PriorityScheduler extends Scheduler {
 		 * @param thread
 		 *            the thread this state belongs to.
 		 */
-
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
@@ -303,22 +432,6 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-
-			if (!resourceQueue.isEmpty() && this.priorityCheck) {
-				this.effectivePriority = this.getPriority();
-				// iterate through threads in resourceQueue
-				Iterator<PriorityQueue> nextThread = resourceQueue.iterator();
-				while (nextThread.hasNext()) {
-					/*
-					 * compares current priority to the effective priority in priority queue and
-					 * determine maximum effective priority among the threads
-					 */
-					effectivePriority = Math.max(effectivePriority, nextThread.next().getEffectivePriority());
-				}
-				priorityCheck = false;
-			}
-			// return final effective priority
 			return effectivePriority;
 		}
 
@@ -329,90 +442,61 @@ public class PriorityScheduler extends Scheduler {
 		 *            the new priority.
 		 */
 		public void setPriority(int priority) {
-
-			// implement me
-
 			if (this.priority == priority)
 				return;
 
 			this.priority = priority;
 
-			Iterator<PriorityQueue> thread = waitingQueue.iterator();
-			while (thread.hasNext()) {
-
-				thread.next().cache();
-			}
+			updateEffectivePriority();
 		}
 
 		public void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.resourceHolder == this);
 
-			// remove queue from resource queue
-			this.resourceQueue.remove(waitQueue);
+			// take back the queue's donation before letting go of it
+			if (waitQueue.donation != -1) {
+				removeDonation(waitQueue.donation);
+				waitQueue.donation = -1;
+			}
+			waitQueue.resourceHolder = null;
 
-			// cache
-			cachePriority();
+			updateEffectivePriority();
 		}
 
-		/*
-		 * calculate maximum effective priority based on PriorityQueue class to compare
-		 * w/ the ThreadState's effective priority
-		 */
-
-		public int calcMaxPriority() {
-
-			// current priority
-			int calcMaxEP = this.priority;
-
-			// iterate through the Priority queue
-			Iterator<PriorityQueue> thread = resourceQueue.iterator();
-			while (thread.hasNext()) {
-
-				// determine maximum priority by comparing w/ effective priority
-				calcMaxEP = Math.max(calcMaxEP, (thread.next()).getEffectivePriority());
-
-			} // return max priority from PriorityQueue
-			return calcMaxEP;
+		void addDonation(int level) {
+			if (donations[level]++ == 0)
+				donated |= (1 << level);
 		}
 
-		// update effective priority
-		public void updateEP() {
-
-			// set current effective priority as the new max priority
-			effectivePriority = calcMaxPriority();
-
-			// retrieve last thread of resource queue
-			PriorityQueue thread = resourceQueue.pollLast();
-
-			// if they have the same effective priority
-			if (effectivePriority == calcMaxPriority()) {
-				// iterate through all threads in priority queue
-				Iterator<PriorityQueue> threads = resourceQueue.iterator();
-				while (threads.hasNext()) {
-
-					int threadEP = thread.getEffectivePriority();
-					int nextThreadEP = threads.next().getEffectivePriority();
-
-					// if same priority
-					if (threadEP == nextThreadEP) {
-						// compare wait time
-						/*
-						 * if (thread.waitTime <= threads.next().waitTime) { effectivePriority =
-						 * nextThreadEP; }
-						 */
-					}
-				}
-			}
+		void removeDonation(int level) {
+			if (--donations[level] == 0)
+				donated &= ~(1 << level);
 		}
 
-		private void cache() {
-			if (this.priorityCheck)
+		/**
+		 * Recompute the effective priority of the associated thread from its own
+		 * priority and the donations it receives. If it changes, move the thread
+		 * within the queue it is waiting on, which passes the change on to that
+		 * queue's holder if it changes that queue's donation.
+		 */
+		void updateEffectivePriority() {
+			int newPriority = priority;
+			if (donated != 0)
+				newPriority = Math.max(newPriority,
+						31 - Integer.numberOfLeadingZeros(donated));
+
+			if (newPriority == effectivePriority)
 				return;
-			this.priorityCheck = true;
 
-			Iterator<PriorityQueue> thread = waitingQueue.iterator();
-			while (thread.hasNext()) {
+			PriorityQueue queue = waitingOn;
+			if (queue != null)
+				queue.remove(this);
+
+			effectivePriority = newPriority;
 
-				thread.next().cache();
+			if (queue != null) {
+				queue.insert(this);
+				queue.updateDonation();
 			}
 		}
 
@@ -429,21 +513,15 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
 
-			// implement me
-
-			// add thread to wait queue
-			waitQueue.waitingQueue.add(this);
-
-			// remove thread from resource queue
-			this.resourceQueue.remove(waitQueue);
+			// a thread waiting for a resource no longer holds it
+			if (waitQueue.resourceHolder == this)
+				release(waitQueue);
 
-			waitQueue.cache();
-
-		}
-
-		public void cachePriority() {
-			this.cache();
+			waitOrder = waitQueue.numWaits++;
+			waitQueue.insert(this);
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -457,15 +535,10 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
-
-			// acquired thread to resource queue
-			this.resourceQueue.add(waitQueue);
-
-			// thread is no longer waiting, remove it!
-			waitQueue.waitingQueue.remove(this);
+			Lib.assertTrue(waitQueue.resourceHolder == null);
 
-			cachePriority();
+			waitQueue.resourceHolder = this;
+			waitQueue.updateDonation();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -52,6 +52,19 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. <tt>KThread</tt>
+     * calls this once, for the first thread. The default is
+     * <tt>newThreadQueue(false)</tt>; a scheduler that treats the ready queue
+     * differently from other queues, such as one with a queue per processor,
+     * overrides this.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +167,143 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Notify the scheduler that the current thread is about to give up the
+     * CPU, whether it is yielding, blocking or finishing. Called with
+     * interrupts disabled, before the next thread to run is chosen. The
+     * default does nothing.
+     */
+    public void stoppingCurrentThread() {
+    }
+
+    /**
+     * Notify the scheduler that the specified thread has just been given the
+     * CPU. Called with interrupts disabled. The default does nothing.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+    }
+
+    /**
+     * Notify the scheduler that the current thread is about to block, in
+     * <tt>KThread.sleep()</tt>. Called with interrupts disabled. The default
+     * does nothing.
+     *
+     * @param	cause	why the thread is blocking; one of the
+     *			<tt>blockedOn</tt> constants, or
+     *			<tt>blockedOther</tt>.
+     */
+    public void blockingCurrentThread(int cause) {
+    }
+
+    /**
+     * Return the number of ticks the specified thread has spent in the
+     * specified kind of time, including the time it has spent in it so far if
+     * that is what it is doing now. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to get the time of.
+     * @param	kind	<tt>timeReady</tt>, <tt>timeRunning</tt>, or one of
+     *			the <tt>blockedOn</tt> constants or
+     *			<tt>blockedOther</tt>.
+     * @return	the number of ticks.
+     */
+    public long getThreadTime(KThread thread, int kind) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(kind >= 0 && kind < numTimeKinds);
+
+	long ticks = thread.schedulingTimes[kind];
+	if (thread.timeKind == kind)
+	    ticks += Machine.timer().getTime() - thread.timeSince;
+
+	return ticks;
+    }
+
+    /**
+     * Return a histogram of the lengths of the completed intervals that all
+     * threads have spent in the specified kind of time. Element <i>i</i> is
+     * the number of intervals at least 2<sup><i>i</i>-1</sup> ticks long but
+     * shorter than 2<sup><i>i</i></sup>; element 0 counts intervals of no
+     * ticks.
+     *
+     * @param	kind	the kind of time, as for <tt>getThreadTime()</tt>.
+     * @return	a new array of 64 interval counts.
+     */
+    public long[] getTimeHistogram(int kind) {
+	Lib.assertTrue(kind >= 0 && kind < numTimeKinds);
+
+	return timeHistograms[kind].clone();
+    }
+
+    /**
+     * Print the histogram of every kind of time any thread has spent.
+     */
+    public void printTimes() {
+	for (int kind = 0; kind < numTimeKinds; kind++) {
+	    long[] histogram = timeHistograms[kind];
+
+	    int last = histogram.length - 1;
+	    while (last >= 0 && histogram[last] == 0)
+		last--;
+	    if (last < 0)
+		continue;
+
+	    System.out.println("Scheduling time " + timeKindNames[kind] + ":");
+	    for (int i = 0; i <= last; i++) {
+		long low = (i == 0) ? 0 : (1L << (i - 1));
+		System.out.println("\t" + low + " ticks and up: " + histogram[i]);
+	    }
+	}
+    }
+
+    /**
+     * End the interval the specified thread has been spending in its current
+     * kind of time, adding it to the thread's total and the histogram, and
+     * start one of the specified kind. Called by <tt>KThread</tt> with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread changing state.
+     * @param	kind	the kind of time it starts spending, or -1 if it has
+     *			finished.
+     */
+    final void chargeThread(KThread thread, int kind) {
+	long now = Machine.timer().getTime();
+
+	if (thread.timeKind != -1) {
+	    long ticks = now - thread.timeSince;
+	    thread.schedulingTimes[thread.timeKind] += ticks;
+	    timeHistograms[thread.timeKind][64 - Long.numberOfLeadingZeros(ticks)]++;
+	}
+
+	thread.timeKind = kind;
+	thread.timeSince = now;
+    }
+
+    /** Time spent ready to run, waiting for the CPU. */
+    public static final int timeReady = 0;
+    /** Time spent running. */
+    public static final int timeRunning = 1;
+    /** Time spent blocked in <tt>Lock.acquire()</tt>. */
+    public static final int blockedOnLock = 2;
+    /**
+     * Time spent blocked in <tt>Condition.sleep()</tt> or
+     * <tt>Condition2.sleep()</tt>.
+     */
+    public static final int blockedOnCondition = 3;
+    /** Time spent blocked in <tt>KThread.join()</tt>. */
+    public static final int blockedOnJoin = 4;
+    /** Time spent blocked in <tt>Alarm.waitUntil()</tt>. */
+    public static final int blockedOnAlarm = 5;
+    /** Time spent blocked anywhere else, such as a semaphore. */
+    public static final int blockedOther = 6;
+    /** The number of kinds of time accounted for. */
+    public static final int numTimeKinds = 7;
+
+    private static final String[] timeKindNames = {
+	"ready", "running", "blocked on lock", "blocked on condition",
+	"blocked on join", "blocked on alarm", "blocked otherwise"
+    };
+
+    private long[][] timeHistograms = new long[numTimeKinds][64];
 }
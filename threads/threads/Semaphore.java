@@ -35,11 +35,22 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	P(Scheduler.blockedOther);
+    }
+
+    /**
+     * Wait for this semaphore like <tt>P()</tt>, accounting any time spent
+     * blocked to the specified cause. Used by primitives built on semaphores.
+     *
+     * @param	cause	why the current thread would block; one of the
+     *			<tt>blockedOn</tt> constants of <tt>Scheduler</tt>.
+     */
+    void P(int cause) {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
 	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
+	    KThread.sleep(cause);
 	}
 	else {
 	    value--;
@@ -0,0 +1,535 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread a share of the queues it waits on in
+ * proportion to its tickets. Instead of holding a random lottery, every thread
+ * has a <i>pass</i> that advances by its <i>stride</i>, inversely proportional
+ * to its tickets, each time it is dequeued. The thread that is dequeued is the
+ * one with the lowest pass, so the share is exact over any interval rather
+ * than only on average.
+ *
+ * <p>
+ * Only the ready queue advances passes, so a thread's pass measures the
+ * processor time it has been given, and waiting for a lock or a join does
+ * not cost it any of its share. Other queues dequeue the waiting thread with
+ * the lowest pass, which is the one furthest behind its share.
+ *
+ * <p>
+ * Waiting threads are kept in a binary min-heap ordered by pass, so a thread
+ * is dequeued in time logarithmic in the number of waiting threads. A thread
+ * that becomes ready has its pass brought up to the ready queue's current
+ * pass, so time spent blocked does not turn into a burst of credit.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins as in a lottery scheduler:
+ * the tickets of the threads waiting on a queue add to those of its holder.
+ * When the tickets of a thread change, the pass it has left to run is
+ * rescaled to its new stride.
+ */
+public class StrideScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer tickets from waiting
+	 *            threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority, false);
+	}
+
+	/**
+	 * Allocate the ready queue, the one queue that advances the passes of
+	 * the threads it dequeues.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new StrideQueue(false, true);
+		return readyQueue;
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getStrideThreadState(thread).numTickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getStrideThreadState(thread).effectiveTickets,
+				priorityMaximum);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+		getStrideThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Test that threads that keep becoming ready are run in exact proportion
+	 * to their tickets, even if one of them waits for a contended lock every
+	 * time it runs, and that a thread that becomes ready late gets its share
+	 * from then on but no credit for the time before.
+	 */
+	public static void selfTest() {
+		StrideScheduler scheduler = new StrideScheduler();
+		ThreadQueue queue = scheduler.newReadyQueue();
+		ThreadQueue lock = scheduler.newThreadQueue(true);
+
+		int[] tickets = { 1, 2, 3, 4, 10 };
+		KThread[] threads = new KThread[tickets.length];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new KThread().setName("tickets " + tickets[i]);
+		KThread lockHolder = new KThread().setName("lock holder");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < threads.length; i++)
+			scheduler.setPriority(threads[i], tickets[i]);
+
+		// all but the last thread, with 10 tickets between them
+		for (int i = 0; i < threads.length - 1; i++)
+			queue.waitForAccess(threads[i]);
+		checkShares(queue, threads, tickets, threads.length - 1, 1000, null, null);
+
+		// waiting for a lock costs a thread none of its share
+		lock.acquire(lockHolder);
+		checkShares(queue, threads, tickets, threads.length - 1, 1000, lock, lockHolder);
+
+		// the last thread brings the total to 20, and takes half from here on
+		queue.waitForAccess(threads[threads.length - 1]);
+		checkShares(queue, threads, tickets, threads.length, 2000, null, null);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("StrideScheduler: test proportions passed");
+	}
+
+	// dequeue and requeue the first n threads, checking each one's share; if
+	// a lock is given, the last of them takes it from its holder each time
+	// it runs, and gives it back
+	private static void checkShares(ThreadQueue queue, KThread[] threads,
+			int[] tickets, int n, int rounds, ThreadQueue lock,
+			KThread lockHolder) {
+		int totalTickets = 0;
+		for (int i = 0; i < n; i++)
+			totalTickets += tickets[i];
+
+		int[] wins = new int[n];
+		for (int round = 0; round < rounds; round++) {
+			KThread winner = queue.nextThread();
+
+			int i = 0;
+			while (threads[i] != winner)
+				i++;
+			Lib.assertTrue(i < n);
+
+			wins[i]++;
+
+			if (lock != null && i == n - 1) {
+				lock.waitForAccess(winner);
+				Lib.assertTrue(lock.nextThread() == winner);
+				lock.acquire(lockHolder);
+			}
+
+			queue.waitForAccess(winner);
+		}
+
+		for (int i = 0; i < n; i++) {
+			int share = rounds * tickets[i] / totalTickets;
+			Lib.assertTrue(Math.abs(wins[i] - share) <= 1,
+					threads[i] + " ran " + wins[i] + " times, not " + share);
+		}
+	}
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with one ticket. Strides of threads with more
+	 * tickets are this divided by their tickets.
+	 */
+	public static final long stride1 = 1L << 30;
+
+	// the ready queue, whose pass the passes of all threads are measured from
+	private StrideQueue readyQueue = null;
+
+	/**
+	 * Return the stride scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected StrideThreadState getStrideThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideThreadState(thread);
+
+		return (StrideThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+	 * pass, or among equal passes, the one that has been waiting longest.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority, boolean advancesPass) {
+			this.transferPriority = transferPriority;
+			this.advancesPass = advancesPass;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getStrideThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (resourceHolder != null)
+				resourceHolder.release(this);
+			getStrideThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0) {
+				if (resourceHolder != null)
+					resourceHolder.release(this);
+				return null;
+			}
+
+			StrideThreadState nextThread = heap[1];
+			remove(nextThread);
+
+			// the queue's pass follows the passes of the threads it dequeues
+			if (advancesPass) {
+				pass = Math.max(pass, nextThread.pass);
+				nextThread.pass += nextThread.getStride();
+			}
+
+			acquire(nextThread.thread);
+
+			return nextThread.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected KThread pickNextThread() {
+			return (size == 0) ? null : heap[1].thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 1; i <= size; i++)
+				System.out.print(heap[i].thread + " ");
+			System.out.println();
+		}
+
+		/**
+		 * Add a waiting thread to the heap, catching its pass up to this
+		 * queue's if this queue advances passes.
+		 */
+		void insert(StrideThreadState ts) {
+			if (size + 1 == heap.length) {
+				StrideThreadState[] newHeap = new StrideThreadState[2 * heap.length];
+				System.arraycopy(heap, 1, newHeap, 1, size);
+				heap = newHeap;
+			}
+
+			if (advancesPass)
+				ts.pass = Math.max(ts.pass, pass);
+			ts.waitOrder = numWaits++;
+			ts.waitingOn = this;
+
+			size++;
+			heap[size] = ts;
+			ts.heapIndex = size;
+			siftUp(size);
+
+			adjust(ts.effectiveTickets);
+		}
+
+		/**
+		 * Remove a waiting thread from the heap.
+		 */
+		void remove(StrideThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == this);
+
+			int i = ts.heapIndex;
+			StrideThreadState last = heap[size];
+			heap[size] = null;
+			size--;
+
+			if (last != ts) {
+				heap[i] = last;
+				last.heapIndex = i;
+				siftUp(i);
+				siftDown(last.heapIndex);
+			}
+
+			ts.waitingOn = null;
+			ts.heapIndex = 0;
+
+			adjust(-ts.effectiveTickets);
+		}
+
+		/**
+		 * Restore heap order after the pass of a waiting thread changed.
+		 */
+		void reorder(StrideThreadState ts) {
+			siftUp(ts.heapIndex);
+			siftDown(ts.heapIndex);
+		}
+
+		/**
+		 * Add <tt>delta</tt> to the tickets waiting on this queue, passing the
+		 * change on to the holder if this queue transfers tickets.
+		 */
+		void adjust(long delta) {
+			sumTickets += delta;
+
+			if (transferPriority && resourceHolder != null)
+				resourceHolder.addTickets(delta);
+		}
+
+		private boolean before(StrideThreadState a, StrideThreadState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass;
+			return a.waitOrder < b.waitOrder;
+		}
+
+		private void siftUp(int i) {
+			StrideThreadState ts = heap[i];
+			while (i > 1 && before(ts, heap[i / 2])) {
+				heap[i] = heap[i / 2];
+				heap[i].heapIndex = i;
+				i /= 2;
+			}
+			heap[i] = ts;
+			ts.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+			StrideThreadState ts = heap[i];
+			while (2 * i <= size) {
+				int child = 2 * i;
+				if (child < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], ts))
+					break;
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+			heap[i] = ts;
+			ts.heapIndex = i;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+		// true for the ready queue, which charges each thread it dequeues
+		private boolean advancesPass;
+
+		// waiting threads, a min-heap by pass from index 1
+		private StrideThreadState[] heap = new StrideThreadState[16];
+		private int size = 0;
+		// the pass of the last thread dequeued
+		private long pass = 0;
+		// the effective tickets of all waiting threads
+		private long sumTickets = 0;
+		// threadstate resource holder
+		StrideThreadState resourceHolder = null;
+		// number of threads that have waited; orders waiters of equal pass
+		long numWaits = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under stride scheduling: its tickets,
+	 * the tickets donated to it, its pass, and the queue it is waiting on, if
+	 * any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class StrideThreadState {
+		/**
+		 * Allocate a new <tt>StrideThreadState</tt> object and associate it
+		 * with the specified thread.
+		 *
+		 * @param thread
+		 *            the thread this state belongs to.
+		 */
+		public StrideThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Return the stride of the associated thread at its current effective
+		 * tickets.
+		 *
+		 * @return the stride of the associated thread.
+		 */
+		public long getStride() {
+			return Math.max(stride1 / effectiveTickets, 1);
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 *
+		 * @param priority
+		 *            the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			long delta = (long) priority - numTickets;
+			numTickets = priority;
+			addTickets(delta);
+		}
+
+		/**
+		 * Add <tt>delta</tt> to the effective tickets of the associated
+		 * thread, and pass the change on through the queue it is waiting on.
+		 */
+		void addTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			long oldTickets = effectiveTickets;
+			effectiveTickets += delta;
+
+			// rescale the pass left to run, measured from the ready queue's
+			long base = (readyQueue == null) ? 0 : readyQueue.pass;
+			long remain = pass - base;
+			if (remain > 0)
+				pass = base + (long) ((double) remain * oldTickets / effectiveTickets);
+
+			if (waitingOn != null) {
+				waitingOn.reorder(this);
+				waitingOn.adjust(delta);
+			}
+		}
+
+		/**
+		 * Called when the associated thread will wait on the specified queue.
+		 *
+		 * @param waitQueue
+		 *            the queue that the associated thread is now waiting on.
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			if (waitQueue.resourceHolder == this)
+				release(waitQueue);
+
+			waitQueue.insert(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to the
+		 * specified queue.
+		 *
+		 * @param waitQueue
+		 *            the queue that the associated thread has acquired.
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			Lib.assertTrue(waitQueue.resourceHolder == null);
+
+			waitQueue.resourceHolder = this;
+			if (waitQueue.transferPriority)
+				addTickets(waitQueue.sumTickets);
+		}
+
+		/**
+		 * Called when the associated thread gives up the specified queue.
+		 *
+		 * @param waitQueue
+		 *            the queue that the associated thread held.
+		 */
+		public void release(StrideQueue waitQueue) {
+			Lib.assertTrue(waitQueue.resourceHolder == this);
+
+			waitQueue.resourceHolder = null;
+			if (waitQueue.transferPriority)
+				addTickets(-waitQueue.sumTickets);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The tickets of the associated thread. */
+		protected int numTickets = priorityMinimum;
+		// own tickets plus those of waiters on held transfer queues
+		long effectiveTickets = priorityMinimum;
+		// pass of the associated thread
+		long pass = 0;
+		// the queue this thread is waiting on, and its place there
+		StrideQueue waitingOn = null;
+		int heapIndex = 0;
+		long waitOrder;
+	}
+}
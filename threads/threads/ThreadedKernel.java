@@ -41,7 +41,8 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, <tt>Channel</tt>, and <tt>ElevatorBank</tt>
+     * classes. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
@@ -50,6 +51,12 @@ public class ThreadedKernel extends Kernel {
 		Semaphore.selfTest();
 		SynchList.selfTest();
 		Communicator.Tester.selfTest();
+		Channel.selfTest();
+		WorkStealingScheduler.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		StrideScheduler.selfTest();
+		MLFQScheduler.selfTest();
 		if (Machine.bank() != null) {
 		    ElevatorBank.selfTest();
 		}
@@ -66,6 +73,9 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (Config.getBoolean("ThreadedKernel.printSchedulingTimes", false))
+	    scheduler.printTimes();
+
 	Machine.halt();
     }
 
@@ -84,4 +94,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static WorkStealingScheduler dummy10 = null;
 }
@@ -0,0 +1,223 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A round-robin scheduler whose ready queue is split into one FIFO queue per
+ * processor. A thread that becomes ready joins the queue of the processor it
+ * last ran on, so that it finds that processor's TLB as it left it.
+ *
+ * <p>
+ * When a thread gives up its processor, the next thread comes from the head
+ * of that processor's own queue. Only if that queue is empty does the
+ * processor steal: it takes the thread that has waited longest in the
+ * longest other queue, of those that may change processor, and the thread
+ * moves to the stealing processor. A thread that has started running user
+ * code keeps its user state in its processor, so it is never moved; if no
+ * ready thread can move, the oldest thread in the longest queue runs on its
+ * own processor instead.
+ *
+ * <p>
+ * Queues other than the ready queue are FIFO queues, as for
+ * <tt>RoundRobinScheduler</tt>.
+ */
+public class WorkStealingScheduler extends RoundRobinScheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+    }
+
+    /**
+     * Allocate the ready queue, with one queue per processor.
+     *
+     * @return	a new per-processor ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new ReadyQueue();
+    }
+
+    /**
+     * Return the number of threads that have been moved to another
+     * processor's queue.
+     *
+     * @return	the number of steals.
+     */
+    public long getNumSteals() {
+	return numSteals;
+    }
+
+    /**
+     * Test that a processor runs its own ready threads first, and steals only
+     * threads that may change processor when its own queue is empty.
+     */
+    public static void selfTest() {
+	if (Machine.numProcessors() < 2) {
+	    System.out.println("WorkStealingScheduler: needs more than one " +
+			       "processor, test skipped");
+	    return;
+	}
+
+	WorkStealingScheduler scheduler = new WorkStealingScheduler();
+	ThreadQueue queue = scheduler.newReadyQueue();
+
+	int here = KThread.currentThread().getProcessor();
+	int other = (here + 1) % Machine.numProcessors();
+
+	KThread local = new KThread().setName("local").setProcessor(here);
+	KThread bound = new KThread().setName("bound").setProcessor(other);
+	KThread first = new KThread().setName("first").setProcessor(other);
+	KThread second = new KThread().setName("second").setProcessor(other);
+	bound.bindProcessor();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	queue.waitForAccess(bound);
+	queue.waitForAccess(first);
+	queue.waitForAccess(second);
+	queue.waitForAccess(local);
+
+	// the processor's own thread goes first, even though it came last
+	Lib.assertTrue(queue.nextThread() == local);
+	Lib.assertTrue(scheduler.getNumSteals() == 0);
+
+	// then the oldest thread that can move, which moves here
+	Lib.assertTrue(queue.nextThread() == first);
+	Lib.assertTrue(first.getProcessor() == here);
+	Lib.assertTrue(queue.nextThread() == second);
+	Lib.assertTrue(scheduler.getNumSteals() == 2);
+
+	// a bound thread runs where it is
+	Lib.assertTrue(queue.nextThread() == bound);
+	Lib.assertTrue(bound.getProcessor() == other);
+	Lib.assertTrue(scheduler.getNumSteals() == 2);
+
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("WorkStealingScheduler: test steal counts passed");
+    }
+
+    private class ReadyQueue extends ThreadQueue {
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	ReadyQueue() {
+	    queues = new ArrayDeque[Machine.numProcessors()];
+	    for (int i=0; i<queues.length; i++)
+		queues[i] = new ArrayDeque<KThread>();
+	}
+
+	/**
+	 * Add a thread to the tail of the queue of the processor it runs on.
+	 *
+	 * @param	thread	the thread that is ready to run.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    queues[thread.getProcessor()].addLast(thread);
+	}
+
+	/**
+	 * Give the current thread's processor its next thread, stealing one
+	 * if its own queue is empty.
+	 *
+	 * @return	the thread to run, or <tt>null</tt> if no thread is
+	 *		ready.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int processor = KThread.currentThread().getProcessor();
+
+	    KThread thread = queues[processor].pollFirst();
+	    if (thread != null)
+		return thread;
+
+	    return steal(processor);
+	}
+
+	/**
+	 * Take a thread from another processor's queue, since the specified
+	 * processor's own queue is empty.
+	 *
+	 * @param	processor	the processor that is stealing.
+	 * @return	the thread to run, or <tt>null</tt> if no thread is
+	 *		ready.
+	 */
+	private KThread steal(int processor) {
+	    int victim = -1;
+	    KThread stolen = null;
+
+	    for (int i=0; i<queues.length; i++) {
+		if (victim != -1 && queues[i].size() <= queues[victim].size())
+		    continue;
+
+		for (Iterator<KThread> j=queues[i].iterator(); j.hasNext(); ) {
+		    KThread thread = j.next();
+		    if (thread.canChangeProcessor()) {
+			victim = i;
+			stolen = thread;
+			break;
+		    }
+		}
+	    }
+
+	    if (stolen == null) {
+		int longest = longestQueue();
+		return (longest == -1) ? null : queues[longest].pollFirst();
+	    }
+
+	    queues[victim].removeFirstOccurrence(stolen);
+	    stolen.setProcessor(processor);
+	    numSteals++;
+
+	    return stolen;
+	}
+
+	/**
+	 * The ready queue has no holder. Assert that no threads are ready.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(longestQueue() == -1);
+	}
+
+	/**
+	 * Print out the contents of each processor's queue.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<queues.length; i++) {
+		System.out.print(i + ":");
+		for (Iterator<KThread> j=queues[i].iterator(); j.hasNext(); )
+		    System.out.print(" " + j.next());
+		System.out.println();
+	    }
+	}
+
+	/**
+	 * Return the processor with the most ready threads, or -1 if none
+	 * has any.
+	 */
+	private int longestQueue() {
+	    int longest = -1;
+	    for (int i=0; i<queues.length; i++) {
+		if (!queues[i].isEmpty() &&
+		    (longest == -1 || queues[i].size() > queues[longest].size()))
+		    longest = i;
+	    }
+
+	    return longest;
+	}
+
+	private ArrayDeque<KThread>[] queues;
+    }
+
+    private long numSteals = 0;
+}
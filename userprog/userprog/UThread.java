@@ -22,16 +22,121 @@ public class UThread extends KThread {
 	    });
 
 	this.process = process;
+
+	// spread user threads across the processors
+	setProcessor(nextProcessor);
+	nextProcessor = (nextProcessor+1) % Machine.numProcessors();
     }
 
     private void runProgram() {
+	bindProcessor();
+
 	process.initRegisters();
 	process.restoreState();
 
-	Machine.processor().run();
+	if (Machine.processor().isConcurrent())
+	    runSlices();
+	else
+	    Machine.processor().run();
 	
 	Lib.assertNotReached();
     }
+
+    /**
+     * Run user code in slices on this thread's processor, sleeping while
+     * each slice runs so that other threads, including user threads on
+     * other processors, can run meanwhile. Never returns.
+     *
+     * <p>
+     * Only one thread at a time may have a slice running on a processor.
+     * A thread lets the others sharing its processor go first after a slice
+     * that ran to its end. After an exception it takes the processor back
+     * at once if it can, as a thread on real hardware would keep running,
+     * until it has had the processor for <tt>Stats.TimerTicks</tt>. Without
+     * this, threads sharing a small TLB would take turns at every TLB miss,
+     * and evict each other's entries before they could be used.
+     */
+    private void runSlices() {
+	Processor processor = Machine.processor();
+	int number = processor.getNumber();
+
+	processor.startProgram();
+
+	long turnStart = Machine.timer().getTime();
+
+	while (true) {
+	    claimProcessor(number);
+
+	    processor.startSlice();
+	    slicesEnded[number].P();
+	    boolean exception = processor.endSlice();
+
+	    // the handler may block, or finish this thread, so it always runs
+	    // without the processor
+	    releaseProcessor(number);
+
+	    if (exception)
+		processor.handleSliceException();
+
+	    if (!exception ||
+		Machine.timer().getTime() - turnStart >= Stats.TimerTicks) {
+		KThread.yield();
+		turnStart = Machine.timer().getTime();
+	    }
+	}
+    }
+
+    /**
+     * Wait until no other thread has a slice on the specified processor, and
+     * then claim it.
+     */
+    private static void claimProcessor(int number) {
+	sliceLock.acquire();
+
+	while (sliceRunning[number])
+	    processorFree[number].sleep();
+	sliceRunning[number] = true;
+
+	sliceLock.release();
+    }
+
+    /**
+     * Give up the specified processor, waking a thread waiting for it. The
+     * woken thread must claim it again, so the current thread may get it
+     * back first.
+     */
+    private static void releaseProcessor(int number) {
+	sliceLock.acquire();
+
+	sliceRunning[number] = false;
+	processorFree[number].wake();
+
+	sliceLock.release();
+    }
+
+    /**
+     * Set up every processor to run user code in slices. Called by
+     * <tt>UserKernel.initialize()</tt> if the processors can.
+     */
+    static void initializeSlices() {
+	int numProcessors = Machine.numProcessors();
+
+	sliceLock = new Lock();
+	sliceRunning = new boolean[numProcessors];
+	processorFree = new Condition2[numProcessors];
+	slicesEnded = new Semaphore[numProcessors];
+
+	for (int i=0; i<numProcessors; i++) {
+	    final Semaphore ended = new Semaphore(0);
+
+	    processorFree[i] = new Condition2(sliceLock);
+	    slicesEnded[i] = ended;
+
+	    Machine.processor(i).setSliceHandler(new Runnable() {
+		    public void run() { ended.V(); }
+		});
+	}
+    }
     
     /**
      * Save state before giving up the processor to another thread.
@@ -72,4 +177,16 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /** The processor the next user thread will run on. */
+    private static int nextProcessor = 0;
+
+    /** Protects <tt>sliceRunning</tt>. */
+    private static Lock sliceLock;
+    /** <tt>true</tt> while a thread has claimed each processor. */
+    private static boolean[] sliceRunning;
+    /** Signalled when each processor is released. */
+    private static Condition2[] processorFree;
+    /** Signalled when the slice running on each processor ends. */
+    private static Semaphore[] slicesEnded;
 }
@@ -18,16 +18,21 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * exception handler of every processor, and their slice handlers if
+     * they run user code concurrently.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
 	
-	Machine.processor().setExceptionHandler(new Runnable() {
+	Runnable handler = new Runnable() {
 		public void run() { exceptionHandler(); }
-	    });
+	    };
+	for (int i=0; i<Machine.numProcessors(); i++)
+	    Machine.processor(i).setExceptionHandler(handler);
+	if (Machine.processor().isConcurrent())
+	    UThread.initializeSlices();
 		//Linked list with all free physical available pages
 		freePages = new LinkedList<Integer>();
 		int numPhysPages = Machine.processor().getNumPhysPages();
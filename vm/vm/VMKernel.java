@@ -28,6 +28,8 @@ public class VMKernel extends UserKernel {
      */	
     public void selfTest() {
 	super.selfTest();
+
+	VMProcess.selfTest();
     }
 
     /**
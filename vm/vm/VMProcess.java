@@ -14,6 +14,8 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	asid = nextASID++;
     }
 
     /**
@@ -26,10 +28,11 @@ public class VMProcess extends UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB entries are tagged with this
+     * process's ASID, so they need not be flushed.
      */
     public void restoreState() {
-	super.restoreState();
+	Machine.processor().setASID(asid);
     }
 
     /**
@@ -47,6 +50,8 @@ public class VMProcess extends UserProcess {
      */
     protected void unloadSections() {
 	super.unloadSections();
+
+	Machine.processor().flushTLB(asid);
     }    
 
     /**
@@ -67,6 +72,43 @@ public class VMProcess extends UserProcess {
 	}
     }
 	
+    /**
+     * Test that a TLB entry built without an ASID translates for the process
+     * whose state was restored when it was written, as the kernel's TLB miss
+     * handling builds them.
+     */
+    public static void selfTest() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+	int savedASID = processor.getASID();
+
+	VMProcess process = new VMProcess();
+	process.restoreState();
+
+	TranslationEntry entry = new TranslationEntry(0, 0, true, false,
+						      false, false);
+	int number = processor.writeTLBEntry(entry);
+	Lib.assertTrue(processor.readTLBEntry(number).asid == process.asid);
+
+	// writing the page again finds the entry, as a lookup would
+	entry.ppn = 1;
+	Lib.assertTrue(processor.writeTLBEntry(entry) == number);
+
+	processor.flushTLB(process.asid);
+	processor.setASID(savedASID);
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("VMProcess: test TLB entries take the ASID passed");
+    }
+
+    /** The ASID tagging this process's TLB entries. */
+    protected int asid;
+
+    private static int nextASID = 1;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';